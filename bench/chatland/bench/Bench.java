@@ -0,0 +1,100 @@
+package chatland.bench;
+
+import chatland.ChatLand;
+import chatland.IRCHandler;
+import chatland.Message;
+import chatland.Transport;
+import chatland.threads.IRCWorker;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * What the benchmarks share: a ChatLand whose IRCWorker is driven by the
+ * benchmark thread through IRCWorker.process(), and users whose Transport
+ * throws their output away instead of writing it to a socket.
+ *
+ * @author ultasun
+ */
+final class Bench {
+
+    private Bench() {
+    }
+
+    /**
+     * @return a ChatLand with one IRCWorker, not started
+     */
+    static ChatLand newChatLand() {
+        return new ChatLand("irc.bench", "benchmarking", 1);
+    }
+
+    static IRCWorker worker(ChatLand cl) {
+        return cl.getIRCWorkers()[0];
+    }
+
+    /**
+     * Makes a registered user, the way Main does, and lets the IRCWorker
+     * answer its WELCOMEMSG and MOTD.
+     */
+    static IRCHandler newUser(ChatLand cl, String nick) throws IOException {
+        IRCHandler h = new IRCHandler(worker(cl), nick, nick, "Bench " + nick,
+                new NullTransport());
+        if (!cl.registerHandle(h)) {
+            throw new IllegalStateException(nick + " is taken");
+        }
+        worker(cl).process(null);
+        return h;
+    }
+
+    /**
+     * Puts h in a channel without sending a JOIN, so big channels can be
+     * set up without answering a NAMES for every member.
+     */
+    static void join(ChatLand cl, String channel, IRCHandler h) {
+        cl.joinChannel(channel, h);
+        h.joined(channel);
+    }
+
+    /**
+     * Takes Messages off the output queue as soon as they are queued and
+     * encodes them, which is what a real Transport would do before writing.
+     */
+    static final class NullTransport implements Transport {
+
+        private static final Socket SOCKET = new Socket() {
+            @Override
+            public InetAddress getInetAddress() {
+                return InetAddress.getLoopbackAddress();
+            }
+        };
+
+        private IRCHandler client;
+        long bytes;
+
+        @Override
+        public void attach(IRCHandler h) {
+            client = h;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void outputReady() {
+            Message m;
+            while ((m = client.pollOutputQueue()) != null) {
+                bytes += m.getFrame().length;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Socket getSocket() {
+            return SOCKET;
+        }
+    }
+}
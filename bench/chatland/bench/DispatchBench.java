@@ -0,0 +1,128 @@
+package chatland.bench;
+
+import chatland.ChatLand;
+import chatland.IRCHandler;
+import chatland.Message;
+import chatland.ParsedLine;
+import chatland.threads.IRCWorker;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One line from a client, through IRCWorker.execMessage(), per command: the
+ * parsing, the Commands lookup, the command itself and queueing (and
+ * encoding) whatever it answers. The channel has ten members.
+ *
+ * @author ultasun
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBench {
+
+    private IRCWorker w;
+    private ParsedLine parsed;
+    private Message ping, privMsgUser, privMsgChannel, names, who, topic,
+            motd, unknown, join, part, nickAway, nickBack;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatLand cl = Bench.newChatLand();
+        w = Bench.worker(cl);
+        parsed = new ParsedLine();
+        IRCHandler alice = Bench.newUser(cl, "alice");
+        Bench.newUser(cl, "bob");
+        for (int i = 0; i < 9; i++) {
+            Bench.join(cl, "#bench", Bench.newUser(cl, "user" + i));
+        }
+        Bench.join(cl, "#bench", alice);
+
+        ping = new Message(alice, "PING :irc.bench");
+        privMsgUser = new Message(alice, "PRIVMSG bob :hello there bob");
+        privMsgChannel = new Message(alice, "PRIVMSG #bench :hello everyone");
+        names = new Message(alice, "NAMES #bench");
+        who = new Message(alice, "WHO #bench");
+        topic = new Message(alice, "TOPIC #bench");
+        motd = new Message(alice, "MOTD");
+        unknown = new Message(alice, "FROBNICATE a b c");
+        join = new Message(alice, "JOIN #other");
+        part = new Message(alice, "PART #other");
+        nickAway = new Message(alice, "NICK alice_away");
+        nickBack = new Message(alice, "NICK alice");
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return parsed.parse(
+                ":alice!~alice@localhost PRIVMSG #bench :hello everyone");
+    }
+
+    @Benchmark
+    public void ping() {
+        w.process(ping);
+    }
+
+    @Benchmark
+    public void privMsgUser() {
+        w.process(privMsgUser);
+    }
+
+    @Benchmark
+    public void privMsgChannel() {
+        w.process(privMsgChannel);
+    }
+
+    @Benchmark
+    public void names() {
+        w.process(names);
+    }
+
+    @Benchmark
+    public void who() {
+        w.process(who);
+    }
+
+    @Benchmark
+    public void topic() {
+        w.process(topic);
+    }
+
+    @Benchmark
+    public void motd() {
+        w.process(motd);
+    }
+
+    @Benchmark
+    public void unknown() {
+        w.process(unknown);
+    }
+
+    /**
+     * A JOIN answers with NAMES and TOPIC as well, so this is all three,
+     * and the PART.
+     */
+    @Benchmark
+    public void joinPart() {
+        w.process(join);
+        w.process(part);
+    }
+
+    @Benchmark
+    public void nickTwice() {
+        w.process(nickAway);
+        w.process(nickBack);
+    }
+}
@@ -0,0 +1,69 @@
+package chatland.bench;
+
+import chatland.ChatLand;
+import chatland.IRCHandler;
+import chatland.Message;
+import chatland.threads.IRCWorker;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One PRIVMSG to a channel, delivered to every member's output queue (and
+ * taken off it again by the Bench.NullTransport), for channels of 10 to
+ * 10000 members.
+ *
+ * @author ultasun
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private IRCWorker w;
+    private Message privMsg, quietPrivMsg;
+
+    @Setup
+    public void setUp() throws IOException {
+        ChatLand cl = Bench.newChatLand();
+        w = Bench.worker(cl);
+        IRCHandler sender = null;
+        for (int i = 0; i < members; i++) {
+            IRCHandler h = Bench.newUser(cl, "user" + i);
+            Bench.join(cl, "#fan", h);
+            if (sender == null) {
+                sender = h;
+            }
+        }
+        privMsg = new Message(sender, "PRIVMSG #fan :hello everyone, "
+                + "this is about as long as a line of chat usually is");
+        // nobody is in #empty, for the cost without the fan-out
+        quietPrivMsg = new Message(sender, "PRIVMSG #empty :hello?");
+    }
+
+    @Benchmark
+    public void privMsg() {
+        w.process(privMsg);
+    }
+
+    @Benchmark
+    public void privMsgNobody() {
+        w.process(quietPrivMsg);
+    }
+}
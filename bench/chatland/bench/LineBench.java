@@ -0,0 +1,78 @@
+package chatland.bench;
+
+import chatland.LineDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cutting what a client sends into lines, the way ClientInput used to (a
+ * Scanner) and does now (a LineDecoder). Run it with -prof gc to see the
+ * allocation per line too.
+ *
+ * @author ultasun
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineBench {
+
+    private static final int LINES = 1000;
+
+    @Param({"ascii", "utf8"})
+    public String text;
+
+    private byte[] input;
+
+    @Setup
+    public void setUp() {
+        String words = text.equals("ascii")
+                ? "hello everybody, how is it going"
+                : "gr\u00fc\u00dfe an alle, wie geht's \u263a";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.append("PRIVMSG #chatland :").append(i).append(' ')
+                    .append(words).append("\r\n");
+        }
+        input = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void scanner(Blackhole bh) {
+        Scanner in = new Scanner(new ByteArrayInputStream(input),
+                "UTF-8");
+        while (in.hasNext()) {
+            bh.consume(in.nextLine());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void lineDecoder(Blackhole bh) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        LineDecoder reader = new LineDecoder();
+        String line;
+        while ((line = reader.readLine(in)) != null) {
+            bh.consume(line);
+        }
+    }
+}
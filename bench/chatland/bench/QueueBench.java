@@ -0,0 +1,81 @@
+package chatland.bench;
+
+import chatland.Message;
+import chatland.SendQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SendQueue throughput. "alone" is one thread queueing and taking back, the
+ * others share one SendQueue between threads: one IRCWorker and one
+ * ClientOutput, and three IRCWorkers (-Dchatland.workers) feeding one
+ * ClientOutput. The queue uses the DROP policy with channel chatter, so
+ * producers which outrun the consumer have their Messages dropped rather
+ * than the queue growing or overflowing.
+ *
+ * @author ultasun
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class QueueBench {
+
+    private SendQueue queue;
+    private Message chatter;
+
+    @Setup
+    public void setUp() {
+        queue = new SendQueue(1024 * 1024, SendQueue.Policy.DROP);
+        chatter = Message.chatter(":alice!~alice@localhost PRIVMSG #bench "
+                + ":hello everyone");
+    }
+
+    @Benchmark
+    @Group("alone")
+    public Message offerPoll() {
+        queue.offer(chatter);
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("oneWorker")
+    @GroupThreads(1)
+    public SendQueue.Offer oneWorkerOffer() {
+        return queue.offer(chatter);
+    }
+
+    @Benchmark
+    @Group("oneWorker")
+    @GroupThreads(1)
+    public Message oneWorkerPoll() {
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Group("threeWorkers")
+    @GroupThreads(3)
+    public SendQueue.Offer threeWorkersOffer() {
+        return queue.offer(chatter);
+    }
+
+    @Benchmark
+    @Group("threeWorkers")
+    @GroupThreads(1)
+    public Message threeWorkersPoll() {
+        return queue.poll();
+    }
+}
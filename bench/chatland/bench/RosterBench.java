@@ -0,0 +1,72 @@
+package chatland.bench;
+
+import chatland.ChatLand;
+import chatland.IRCHandler;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking a handle up in the roster, as PRIVMSG, NICK and registration do,
+ * with the handle in a different case than it was registered in.
+ *
+ * @author ultasun
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RosterBench {
+
+    @Param({"1000", "50000"})
+    public int users;
+
+    private ChatLand cl;
+    private String[] asked;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        cl = Bench.newChatLand();
+        asked = new String[1024];
+        for (int i = 0; i < users; i++) {
+            Bench.newUser(cl, "User[" + i + "]");
+        }
+        for (int i = 0; i < asked.length; i++) {
+            asked[i] = "uSER{" + ((i * 7919) % users) + "}";
+        }
+        next = 0;
+    }
+
+    private String nextHandle() {
+        next = (next + 1) & (asked.length - 1);
+        return asked[next];
+    }
+
+    @Benchmark
+    public IRCHandler findHit() {
+        return cl.findHandle(nextHandle());
+    }
+
+    @Benchmark
+    public IRCHandler findMiss() {
+        return cl.findHandle(nextHandle() + "_");
+    }
+
+    @Benchmark
+    public String foldHandle() {
+        return ChatLand.foldHandle(nextHandle());
+    }
+}
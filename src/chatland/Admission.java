@@ -0,0 +1,140 @@
+package chatland;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides who gets in while connections are still registering.
+ *
+ * - At most Settings.REGISTER_MAX_PENDING connections can be registering at
+ * once. When that many are, the accept loop waits in awaitRoom() before it
+ * accepts the next one, and the new clients wait in the listen backlog.
+ *
+ * - At most Settings.CONNECTIONS_PER_ADDRESS connections (registering or
+ * registered) can come from one address. More than that are refused right
+ * after accept().
+ *
+ * - A connection which has not registered within
+ * Settings.REGISTER_TIMEOUT_SECONDS is closed (see Registration).
+ *
+ * Every connection that admit() let in has to be let out again with left(),
+ * exactly once: by its Registration if it never registered, otherwise by its
+ * IRCHandler when it quits.
+ *
+ * @author ultasun
+ */
+public final class Admission {
+
+    private static final Semaphore ROOM
+            = new Semaphore(Settings.REGISTER_MAX_PENDING);
+    private static final ConcurrentHashMap<InetAddress, Integer> ADDRESSES
+            = new ConcurrentHashMap<>();
+    private static final AtomicLong REFUSED = new AtomicLong();
+    private static final AtomicLong TIMED_OUT = new AtomicLong();
+    private static final ScheduledExecutorService TIMER;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setName("Registration-timeout");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // most registrations finish in time, don't keep their timeouts around
+        timer.setRemoveOnCancelPolicy(true);
+        TIMER = timer;
+    }
+
+    private Admission() {
+    }
+
+    /**
+     * Waits until there is room for one more registering connection, and
+     * takes it. Called by the accept loop before accept().
+     *
+     * @throws InterruptedException if the accept loop is interrupted
+     */
+    public static void awaitRoom() throws InterruptedException {
+        ROOM.acquire();
+    }
+
+    /**
+     * Lets a connection from a in, unless there are too many from there
+     * already. Either way the room taken by awaitRoom() is now the
+     * connection's: if it was refused the room is given back here.
+     *
+     * @param a the address of the new connection
+     * @return boolean false if the connection is refused and should be closed
+     */
+    public static boolean admit(InetAddress a) {
+        int count = ADDRESSES.merge(a, 1, Integer::sum);
+        int limit = Settings.CONNECTIONS_PER_ADDRESS;
+        if (count > limit && limit > 0) {
+            left(a);
+            ROOM.release();
+            REFUSED.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A connection let in by admit() is gone.
+     *
+     * @param a its address
+     */
+    public static void left(InetAddress a) {
+        ADDRESSES.computeIfPresent(a, (k, count) -> count > 1
+                ? count - 1 : null);
+    }
+
+    /**
+     * A connection stopped registering, because it did or because it gave up
+     * or timed out.
+     */
+    static void settled() {
+        ROOM.release();
+    }
+
+    static void timedOut() {
+        TIMED_OUT.incrementAndGet();
+    }
+
+    static ScheduledFuture<?> expireLater(Runnable expire) {
+        return TIMER.schedule(expire, Settings.REGISTER_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return int how many connections are registering right now
+     */
+    public static int getPending() {
+        return Settings.REGISTER_MAX_PENDING - ROOM.availablePermits();
+    }
+
+    /**
+     * @return long how many connections were refused for their address
+     */
+    public static long getRefused() {
+        return REFUSED.get();
+    }
+
+    /**
+     * @return long how many connections did not register in time
+     */
+    public static long getTimedOut() {
+        return TIMED_OUT.get();
+    }
+}
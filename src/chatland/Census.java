@@ -0,0 +1,41 @@
+package chatland;
+
+/**
+ * A count of what one IRCWorker shard holds: its users and their queues, its
+ * channels, and its own queues. Each IRCWorker takes its census on its own
+ * thread (see IRCWorker.census()), so nothing is read while it changes, and
+ * Metrics adds the shards up.
+ *
+ * @author ultasun
+ */
+public class Census {
+
+    public int users, channels, members;
+    public String largestChannel = "";
+    public int largestChannelMembers;
+    public long inputMessages, outputMessages, outputBytes, maxOutputBytes;
+    public int readyQueue, forwardedQueue;
+
+    /**
+     * Adds another shard's census to this one.
+     *
+     * @param other the other shard's census
+     * @return this Census
+     */
+    public Census add(Census other) {
+        users += other.users;
+        channels += other.channels;
+        members += other.members;
+        if (other.largestChannelMembers > largestChannelMembers) {
+            largestChannel = other.largestChannel;
+            largestChannelMembers = other.largestChannelMembers;
+        }
+        inputMessages += other.inputMessages;
+        outputMessages += other.outputMessages;
+        outputBytes += other.outputBytes;
+        maxOutputBytes = Math.max(maxOutputBytes, other.maxOutputBytes);
+        readyQueue += other.readyQueue;
+        forwardedQueue += other.forwardedQueue;
+        return this;
+    }
+}
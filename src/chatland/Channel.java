@@ -1,22 +1,80 @@
 package chatland;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 /**
- * Details on what a Channel is. handles is a List of handles in the channel.
+ * Details on what a Channel is. The members are the IRCHandlers in the
+ * channel.
+ *
+ * The members sit next to each other in an array, and a map remembers where
+ * each one is, so joining, parting and asking if somebody is in the channel
+ * cost the same however big the channel is. Parting moves the last member
+ * into the hole, so the array never has gaps. A handler can only be in the
+ * channel once.
+ *
+ * Anybody sending to the channel iterates getMembers(), a snapshot which never
+ * changes once handed out. It is only copied again when the members have
+ * changed since the last one, so a busy channel nobody joins or parts hands
+ * out the same snapshot for every PRIVMSG.
+ *
+ * The Channel also keeps its History, the last lines said in it, and the
+ * pieces of its NAMES and WHO replies. Those are not made again for every
+ * NAMES or WHO, which big channels get a lot of:
+ *
+ * - The NAMES reply is the handles cut into pieces which fit on a 353 line.
+ * A JOIN adds its handle to the last piece, a PART or a NICK (see renamed())
+ * throws the pieces away, and the next NAMES cuts them again.
+ *
+ * - The WHO reply has a piece for each member, the end of its 352 line, kept
+ * next to the member in the same order. Each piece remembers the host line
+ * it was made from, so a member whose handle or host changed since gets its
+ * piece made again, and nobody else does.
+ *
+ * The owning IRCWorker is the only one to change a Channel, but the
+ * changes are synchronized and the snapshot is published through a volatile,
+ * so other threads may read it too.
  *
  * @author ultasun
  */
 public class Channel {
 
-    private final ArrayList<IRCHandler> handles;
+    // the longest line we send, without its CR LF
+    private static final int LINE_BYTES = 510;
+    // NAMES pieces are cut this much shorter than needed, so they still fit
+    // when somebody with a longer handle asks
+    private static final int SPARE_BYTES = 32;
+
     private final String name;
-    private String topic;
+    private volatile String topic;
+
+    private IRCHandler[] members;
+    private int count;
+    private final HashMap<IRCHandler, Integer> index;
+    // null when the members changed since the last getMembers()
+    private volatile List<IRCHandler> snapshot;
+    private final History history;
+
+    // the end of each member's 352 line, and the host line it was made for
+    private String[] who;
+    private String[] whoFor;
+    // the NAMES pieces, null when they have to be cut again
+    private ArrayList<String> names;
+    private int namesRoom, lastNameBytes;
 
     public Channel(String name) {
         this.name = name;
-        handles = new ArrayList<>();
         topic = "";
+        members = new IRCHandler[4];
+        who = new String[4];
+        whoFor = new String[4];
+        count = 0;
+        index = new HashMap<>();
+        snapshot = Collections.emptyList();
+        history = new History();
     }
 
     public String getTopic() {
@@ -27,19 +85,160 @@ public class Channel {
         this.topic = topic;
     }
 
+    /**
+     * Only for the owning IRCWorker.
+     *
+     * @return the History of the channel
+     */
+    public History getHistory() {
+        return history;
+    }
+
     public String getName() {
         return name;
     }
 
-    public void joinChannel(IRCHandler h) {
-        handles.add(h);
+    /**
+     * @param h the IRCHandler joining
+     * @return boolean false if h was in the channel already
+     */
+    public synchronized boolean joinChannel(IRCHandler h) {
+        if (index.containsKey(h)) {
+            return false;
+        }
+        if (count == members.length) {
+            members = Arrays.copyOf(members, count * 2);
+            who = Arrays.copyOf(who, count * 2);
+            whoFor = Arrays.copyOf(whoFor, count * 2);
+        }
+        index.put(h, count);
+        members[count++] = h;
+        snapshot = null;
+        if (names != null) {
+            addName(h.getHandle());
+        }
+        return true;
+    }
+
+    /**
+     * @param h the IRCHandler parting
+     * @return boolean false if h was not in the channel
+     */
+    public synchronized boolean partChannel(IRCHandler h) {
+        Integer at = index.remove(h);
+        if (at == null) {
+            return false;
+        }
+        IRCHandler last = members[--count];
+        members[count] = null;
+        if (last != h) {
+            members[at] = last;
+            who[at] = who[count];
+            whoFor[at] = whoFor[count];
+            index.put(last, at);
+        }
+        who[count] = null;
+        whoFor[count] = null;
+        snapshot = null;
+        names = null;
+        return true;
+    }
+
+    /**
+     * A member changed its handle, so the NAMES pieces are out of date.
+     */
+    public synchronized void renamed() {
+        names = null;
+    }
+
+    /**
+     * The handles of the members, for NAMES. Only for the owning IRCWorker.
+     *
+     * @param prefix the start of the 353 line, up to and including the ":"
+     * @return the handles, space separated, in pieces which fit on a line
+     * after prefix
+     */
+    public synchronized List<String> getNames(String prefix) {
+        int room = LINE_BYTES - bytes(prefix);
+        if (names == null || namesRoom > room) {
+            names = new ArrayList<>();
+            namesRoom = Math.max(room - SPARE_BYTES, 1);
+            for (int i = 0; i < count; i++) {
+                addName(members[i].getHandle());
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(names));
+    }
+
+    private void addName(String handle) {
+        int n = bytes(handle);
+        int last = names.size() - 1;
+        if (last >= 0 && lastNameBytes + 1 + n <= namesRoom) {
+            names.set(last, names.get(last) + " " + handle);
+            lastNameBytes += 1 + n;
+        } else {
+            names.add(handle);
+            lastNameBytes = n;
+        }
+    }
+
+    /**
+     * The members, for WHO. Only for the owning IRCWorker.
+     *
+     * @param server the server name
+     * @return the end of each member's 352 line, after the channel name
+     */
+    public synchronized List<String> getWho(String server) {
+        for (int i = 0; i < count; i++) {
+            IRCHandler h = members[i];
+            String hostLine = h.getHostLine();
+            // the same String as last time if nothing changed
+            if (whoFor[i] != hostLine) {
+                who[i] = h.getUserName() + " " + h.getHost() + " " + server
+                        + " " + h.getHandle() + " H :0 " + h.getRealName();
+                whoFor[i] = hostLine;
+            }
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(Arrays.copyOf(who, count)));
+    }
+
+    /**
+     * @return int how many bytes s is in UTF-8
+     */
+    private static int bytes(String s) {
+        int n = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                n += c >= 0x800 && !Character.isSurrogate(c) ? 2 : 1;
+            }
+        }
+        return n;
+    }
+
+    public synchronized boolean contains(IRCHandler h) {
+        return index.containsKey(h);
     }
 
-    public void partChannel(IRCHandler h) {
-        handles.remove(h);
+    public synchronized int size() {
+        return count;
     }
 
-    public ArrayList<IRCHandler> getChannelRaster() {
-        return handles;
+    /**
+     * @return an unmodifiable List of the members as they are right now
+     */
+    public List<IRCHandler> getMembers() {
+        List<IRCHandler> result = snapshot;
+        if (result == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableList(
+                            Arrays.asList(Arrays.copyOf(members, count)));
+                }
+                result = snapshot;
+            }
+        }
+        return result;
     }
 }
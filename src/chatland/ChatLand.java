@@ -1,9 +1,15 @@
 package chatland;
 
+import chatland.cluster.Cluster;
 import chatland.threads.IRCWorker;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ChatLand will have an input queue (a stack of Messages pushed by an
@@ -26,33 +32,156 @@ import java.util.Map;
  */
 public class ChatLand {
 
-    private final ArrayList<IRCHandler> raster;
-    private final Map<String, Channel> channels;
-    private final IRCWorker workman;
-    private final Thread workmanThread;
+    private final ConcurrentHashMap<String, IRCHandler> raster;
+    private final IRCWorker[] workmen;
+    private final Thread[] workmanThreads;
+    private final AtomicInteger nextWorkman;
+    private final Keepalive keepalive;
+    private final Journal journal;
+    private final Cluster cluster;
+    private final Monitor monitor;
     private final String name, motd;
 
     public ChatLand(String name, String motd) {
+        this(name, motd, Settings.WORKERS);
+    }
+
+    public ChatLand(String name, String motd, int workers) {
         this.name = name;
         this.motd = motd;
-        raster = new ArrayList<>();
-        channels = new HashMap<>();
+        raster = new ConcurrentHashMap<>();
+
+        workmen = new IRCWorker[workers];
+        workmanThreads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            workmen[i] = new IRCWorker(this);
+            workmanThreads[i] = new Thread(workmen[i], "IRCWorker-" + i);
+        }
+        nextWorkman = new AtomicInteger();
+        keepalive = new Keepalive(name);
+        journal = new Journal(Settings.JOURNAL_DIR);
+        cluster = new Cluster(this, Settings.CLUSTER_NODE);
+        monitor = new Monitor(name);
+        restoreChannels();
+    }
 
-        workman = new IRCWorker(this);
-        workmanThread = new Thread(workman);
+    /**
+     * Puts back the channels the Journal remembers, before any IRCWorker has
+     * started, so nobody can see them half done.
+     */
+    private void restoreChannels() {
+        long started = System.nanoTime();
+        Map<String, String> remembered;
+        try {
+            remembered = journal.load();
+        } catch (IOException e) {
+            Log.error("chatland> journal: " + e.getLocalizedMessage()
+                    + ", starting without channels");
+            return;
+        }
+        for (Map.Entry<String, String> e : remembered.entrySet()) {
+            Channel c = new Channel(e.getKey());
+            c.setTopic(e.getValue());
+            channels(e.getKey()).put(e.getKey(), c);
+        }
+        if (!remembered.isEmpty()) {
+            Log.info("chatland> restored " + remembered.size()
+                    + " channels in " + TimeUnit.NANOSECONDS.toMillis(
+                            System.nanoTime() - started) + "ms");
+        }
     }
 
     public void start() {
-        workmanThread.start();
+        for (Thread t : workmanThreads) {
+            t.start();
+        }
+        keepalive.start();
+        journal.start();
+        cluster.start();
     }
 
-    // used for invoking notifyAll from a ClientInput
+    /**
+     * Picks the home IRCWorker for a new connection, round robin. The
+     * IRCHandler is woken up from its ClientInput through it.
+     *
+     * @return IRCWorker the IRCWorker to give to a new IRCHandler
+     */
     public IRCWorker getIRCWorker() {
-        return workman;
+        int i = nextWorkman.getAndIncrement();
+        return workmen[Math.floorMod(i, workmen.length)];
+    }
+
+    public IRCWorker[] getIRCWorkers() {
+        return workmen;
+    }
+
+    public Keepalive getKeepalive() {
+        return keepalive;
     }
 
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public Monitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * @param channel a channel name, in any case
+     * @return IRCWorker the IRCWorker which owns the channel
+     */
+    public IRCWorker getChannelOwner(String channel) {
+        channel = channel.toUpperCase();
+        return workmen[Math.floorMod(channel.hashCode(), workmen.length)];
+    }
+
+    private Map<String, Channel> channels(String channel) {
+        return getChannelOwner(channel).getChannels();
+    }
+
+    /**
+     * @return a copy of the roster, safe to walk while users come and go
+     */
     public ArrayList<IRCHandler> getRoster() {
-        return raster;
+        return new ArrayList<>(raster.values());
+    }
+
+    /**
+     * Folds a handle the way RFC 1459 compares them: case does not matter,
+     * and {}|^ are the lower case of []\~.
+     *
+     * @param handle a handle as the user typed it
+     * @return String the key for the handle in the roster
+     */
+    public static String foldHandle(String handle) {
+        char[] folded = null;
+        for (int i = 0; i < handle.length(); i++) {
+            char c = handle.charAt(i);
+            char f;
+            if (c >= 'A' && c <= 'Z') {
+                f = (char) (c + ('a' - 'A'));
+            } else if (c == '[') {
+                f = '{';
+            } else if (c == ']') {
+                f = '}';
+            } else if (c == '\\') {
+                f = '|';
+            } else if (c == '~') {
+                f = '^';
+            } else if (c > 127) {
+                f = Character.toLowerCase(c);
+            } else {
+                f = c;
+            }
+            if (f != c && folded == null) {
+                folded = handle.toCharArray();
+            }
+            if (folded != null) {
+                folded[i] = f;
+            }
+        }
+        return folded == null ? handle : new String(folded);
     }
 
     public String getName() {
@@ -65,60 +194,97 @@ public class ChatLand {
 
     public String getChannelTopic(String channel) {
         channel = channel.toUpperCase();
-        return channels.get(channel).getTopic();
+        return channels(channel).get(channel).getTopic();
     }
 
     public void setChannelTopic(String channel, String topic) {
         channel = channel.toUpperCase();
-        channels.get(channel).setTopic(topic);
+        channels(channel).get(channel).setTopic(topic);
+        journal.topic(channel, topic);
     }
 
     public boolean channelExists(String channel) {
         channel = channel.toUpperCase();
-        return channels.containsKey(channel);
+        return channels(channel).containsKey(channel);
     }
 
-    public ArrayList<IRCHandler> getChannelRoster(String channel) {
+    /**
+     * @param channel a channel name, in any case
+     * @return a snapshot of the channel's members, which will not change
+     * while it is iterated (empty if there is no such channel)
+     */
+    public List<IRCHandler> getChannelRoster(String channel) {
         channel = channel.toUpperCase();
-        if (channels.containsKey(channel)) {
-            return channels.get(channel).getChannelRaster();
+        Channel c = channels(channel).get(channel);
+        if (c != null) {
+            return c.getMembers();
         }
-        return new ArrayList<>(); // return nothing
+        return Collections.emptyList(); // return nothing
+    }
 
+    /**
+     * Only for the IRCWorker which owns the channel.
+     *
+     * @param channel a channel name, in any case
+     * @return the Channel, null if there is no such channel
+     */
+    public Channel getChannel(String channel) {
+        channel = channel.toUpperCase();
+        return channels(channel).get(channel);
     }
 
     public void createChannel(String channel) {
         channel = channel.toUpperCase();
-        channels.put(channel, new Channel(channel));
+        channels(channel).put(channel, new Channel(channel));
+        journal.created(channel);
     }
 
-    public void joinChannel(String channel, IRCHandler h) {
+    /**
+     * @param channel a channel name, in any case
+     * @param h the IRCHandler joining
+     * @return boolean false if h was in the channel already
+     */
+    public boolean joinChannel(String channel, IRCHandler h) {
         channel = channel.toUpperCase();
         if (!channelExists(channel)) {
             createChannel(channel);
-            channels.get(channel).setTopic("");
+            channels(channel).get(channel).setTopic("");
         }
-        channels.get(channel).joinChannel(h);
+        return channels(channel).get(channel).joinChannel(h);
     }
 
-    public void partChannel(String channel, IRCHandler h) {
+    /**
+     * @param channel a channel name, in any case
+     * @param h the IRCHandler parting
+     * @return boolean false if h was not in the channel
+     */
+    public boolean partChannel(String channel, IRCHandler h) {
         channel = channel.toUpperCase();
-        channels.get(channel).partChannel(h);
+        if (channelExists(channel)) {
+            return channels(channel).get(channel).partChannel(h);
+        }
+        return false;
     }
 
-    // some clients like to send a : before the new nickname, some
-    // don't.
+    /**
+     * Renames h. The new handle is claimed with putIfAbsent() before the old
+     * one is let go, so there is never a moment where two users hold the
+     * same handle. Only h's home IRCWorker renames or removes h.
+     *
+     * @param newnick the handle h wants
+     * @param h the IRCHandler being renamed
+     * @return boolean false if somebody else has newnick already
+     */
     public boolean setHandle(String newnick, IRCHandler h) {
-
-        for (IRCHandler handle : raster) {
-            if (handle.getHandle().equalsIgnoreCase(newnick)) {
-                return false;
-            }
+        String newKey = foldHandle(newnick);
+        String oldKey = foldHandle(h.getHandle());
+        IRCHandler holder = raster.putIfAbsent(newKey, h);
+        if (holder != null && !holder.equals(h)) {
+            return false;
         }
-        for (IRCHandler handle : raster) {
-            if (handle.equals(h)) {
-                handle.setHandle(newnick);
-            }
+        h.setHandle(newnick);
+        if (!oldKey.equals(newKey)) {
+            raster.remove(oldKey, h);
         }
         return true;
     }
@@ -130,31 +296,37 @@ public class ChatLand {
      * @return boolean true if registration was successful
      */
     public boolean registerHandle(IRCHandler h) {
-        if (handleExists(h.getHandle())) {
+        if (raster.putIfAbsent(foldHandle(h.getHandle()), h) != null) {
             return false;
         } else {
+            // before anything the user does can be told to the other nodes
+            cluster.introduce(h);
             h.start();
-            raster.add(h);
+            h.getIRCWorkerToNotify().adopt(h);
+            if (!h.isRemote()) {
+                keepalive.watch(h);
+            }
+            monitor.online(h);
         }
         return true;
     }
 
     public IRCHandler removeHandle(IRCHandler h) {
-        for (IRCHandler handle : raster) {
-            if (handle.equals(h)) {
-                raster.remove(handle);
-                return handle;
-            }
+        if (raster.remove(foldHandle(h.getHandle()), h)) {
+            return h;
         }
         return null;
     }
 
     public boolean handleExists(String h) {
-        for (IRCHandler handle : raster) {
-            if (handle.getHandle().equalsIgnoreCase(h)) {
-                return true;
-            }
-        }
-        return false;
+        return raster.containsKey(foldHandle(h));
+    }
+
+    /**
+     * @param h a handle, in any case
+     * @return the IRCHandler using that handle, or null if nobody is
+     */
+    public IRCHandler findHandle(String h) {
+        return raster.get(foldHandle(h));
     }
 }
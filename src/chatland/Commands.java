@@ -0,0 +1,154 @@
+package chatland;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The table of commands an IRCWorker understands, from command name to the
+ * Handler which carries it out. Adding a command is one register() call.
+ *
+ * This is a small open addressing hash table instead of a HashMap, so that a
+ * ParsedLine can be looked up by the command in the middle of its line,
+ * ignoring case, without making a String of it first.
+ *
+ * exec() also counts and times every command it runs, for Metrics. Each
+ * IRCWorker has its own Commands, so nothing is shared between threads but
+ * the reading.
+ *
+ * @author ultasun
+ */
+public class Commands {
+
+    /**
+     * Carries out one command, reading its parameters from the ParsedLine.
+     */
+    public interface Handler {
+
+        void exec(ParsedLine line);
+    }
+
+    private final String[] names;
+    private final int[] ids;
+    // by id, in the order the commands were registered
+    private final String[] registered;
+    private final Handler[] handlers;
+    private final LatencyHistogram[] timings;
+    private final AtomicLong unknown;
+    private int count;
+
+    public Commands() {
+        names = new String[64];
+        ids = new int[64];
+        registered = new String[32];
+        handlers = new Handler[32];
+        timings = new LatencyHistogram[32];
+        unknown = new AtomicLong();
+        count = 0;
+    }
+
+    /**
+     * Case insensitive hash of part of a String. Only ASCII letters are folded,
+     * which is all a command name has.
+     *
+     * @param s the String
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return int the hash
+     */
+    public static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param name the command name, in upper case
+     * @param handler what to do when a line has that command
+     */
+    public void register(String name, Handler handler) {
+        if (count >= registered.length) {
+            throw new IllegalStateException("too many commands");
+        }
+        int mask = names.length - 1;
+        int i = hash(name, 0, name.length()) & mask;
+        while (names[i] != null && !names[i].equals(name)) {
+            i = (i + 1) & mask;
+        }
+        if (names[i] == null) {
+            names[i] = name;
+            ids[i] = count;
+            registered[count] = name;
+            timings[count] = new LatencyHistogram();
+            count++;
+        }
+        handlers[ids[i]] = handler;
+    }
+
+    /**
+     * @param line a parsed line
+     * @return int the id of the line's command, or -1 if there is none
+     */
+    public int find(ParsedLine line) {
+        int mask = names.length - 1;
+        int i = line.commandHash() & mask;
+        while (names[i] != null) {
+            if (line.commandIs(names[i])) {
+                return ids[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Carries out the line's command, and records how long it took.
+     *
+     * @param line a parsed line
+     * @return boolean false if there is no such command
+     */
+    public boolean exec(ParsedLine line) {
+        int id = find(line);
+        if (id < 0) {
+            unknown.incrementAndGet();
+            return false;
+        }
+        long started = System.nanoTime();
+        try {
+            handlers[id].exec(line);
+        } finally {
+            timings[id].record(System.nanoTime() - started);
+        }
+        return true;
+    }
+
+    /**
+     * @return int how many commands there are, their ids are 0 to size() - 1
+     */
+    public int size() {
+        return count;
+    }
+
+    public String getName(int id) {
+        return registered[id];
+    }
+
+    /**
+     * @param id a command's id
+     * @return the count and durations of that command, so far
+     */
+    public LatencyHistogram getTiming(int id) {
+        return timings[id];
+    }
+
+    /**
+     * @return long how many lines had a command nobody registered
+     */
+    public long getUnknown() {
+        return unknown.get();
+    }
+}
@@ -0,0 +1,116 @@
+package chatland;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps one client from pasting a whole file at the IRCWorker.
+ *
+ * Every line a client sends costs some tokens (see cost()), and the tokens
+ * come back at Settings.FLOOD_RATE a second, up to Settings.FLOOD_BURST of
+ * them. A line which costs more than there is left is not thrown away, it
+ * just has to wait until the tokens are there: admit() says how long, and the
+ * transport stops reading from the client for that long. A client which keeps
+ * on waiting for Settings.FLOOD_STRIKES lines in a row is flooding, and is
+ * disconnected.
+ *
+ * The bucket is kept as a single number, the time at which it will be full
+ * again (this is the "generic cell rate algorithm" way of writing a token
+ * bucket), so taking tokens is one compareAndSet() and nothing is allocated.
+ * The IRCWorker can charge() for a PRIVMSG to a big channel at the same time
+ * as the transport is admitting the next line.
+ *
+ * @author ultasun
+ */
+public class FloodControl {
+
+    // a PRIVMSG costs one more token for each this many channel members
+    public static final int FANOUT_PER_TOKEN = 100;
+
+    private static final boolean ENABLED = Settings.FLOOD_RATE > 0;
+    private static final long INTERVAL = ENABLED
+            ? TimeUnit.SECONDS.toNanos(1) / Settings.FLOOD_RATE : 0;
+    private static final long TOLERANCE = INTERVAL * Settings.FLOOD_BURST;
+
+    // System.nanoTime() at which the bucket is full again, if nothing more
+    // is taken out of it
+    private final AtomicLong full;
+    // lines in a row which had to wait, only touched by the transport
+    private int strikes;
+
+    public FloodControl() {
+        full = new AtomicLong(System.nanoTime());
+        strikes = 0;
+    }
+
+    /**
+     * How many tokens a line from the client costs. Only the command is
+     * looked at, and without making a String of it.
+     *
+     * @param line the line from the client
+     * @return int the cost in tokens
+     */
+    public static int cost(String line) {
+        if (isCommand(line, "PING") || isCommand(line, "PONG")) {
+            return 1;
+        }
+        if (isCommand(line, "WHO") || isCommand(line, "NAMES")
+                || isCommand(line, "STATS") || isCommand(line, "MOTD")) {
+            return 4; // their replies are long
+        }
+        return 2;
+    }
+
+    private static boolean isCommand(String line, String command) {
+        int n = command.length();
+        return line.regionMatches(true, 0, command, 0, n)
+                && (line.length() == n || line.charAt(n) == ' ');
+    }
+
+    /**
+     * Takes the tokens for a line the client sent. Called by the transport,
+     * before the line goes into the input queue.
+     *
+     * @param cost the cost of the line, see cost()
+     * @return long how many nanoseconds to wait before the line may go into
+     * the input queue (0 for right away), or -1 if the client is flooding and
+     * should be disconnected
+     */
+    public long admit(int cost) {
+        if (!ENABLED) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long wait = take(cost, now) - TOLERANCE - now;
+        if (wait <= 0) {
+            strikes = 0;
+            return 0;
+        }
+        if (++strikes >= Settings.FLOOD_STRIKES) {
+            return -1;
+        }
+        return wait;
+    }
+
+    /**
+     * Takes tokens for work the client caused after its line was admitted,
+     * like a PRIVMSG to a big channel. Nobody waits now, the client's next
+     * lines will.
+     *
+     * @param cost how many tokens to take
+     */
+    public void charge(int cost) {
+        if (ENABLED && cost > 0) {
+            take(cost, System.nanoTime());
+        }
+    }
+
+    private long take(int cost, long now) {
+        long was, then;
+        do {
+            was = full.get();
+            then = (was - now > 0 ? was : now) + cost * INTERVAL;
+        } while (!full.compareAndSet(was, then));
+        return then;
+    }
+}
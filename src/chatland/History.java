@@ -0,0 +1,175 @@
+package chatland;
+
+/**
+ * What was said in a channel lately, for CHATHISTORY.
+ *
+ * The lines are kept as they went out, as frames, one after the other in a
+ * single byte array of Settings.HISTORY_BYTES used as a ring. Each is preceded
+ * by its length and the time it was sent. When a new line does not fit, the
+ * oldest ones make room. That way a channel's history is one object however
+ * many lines it holds, and thousands of channels don't give the garbage
+ * collector millions of little Strings to look at. The array is only made
+ * when the first line comes, so a quiet channel costs nothing.
+ *
+ * Every line gets the next sequence number, which CHATHISTORY calls the
+ * msgid, and sends along with the time in each line's tags. The oldest line
+ * still kept is first(), and end() is the one the next line will get.
+ *
+ * Only the IRCWorker which owns the channel touches its History.
+ *
+ * @author ultasun
+ */
+public class History {
+
+    // the length of a frame, and when it was sent
+    private static final int HEADER = 4 + 8;
+
+    private byte[] ring;
+    // where the oldest line starts, and where the next one goes
+    private int head, tail;
+    private int used, count;
+    private long next;
+
+    /**
+     * Gets the lines read().
+     */
+    public interface Reader {
+
+        /**
+         * @param msgid the line's sequence number
+         * @param millis when it was sent
+         * @param frame the line as it went out, a new array
+         */
+        void line(long msgid, long millis, byte[] frame);
+    }
+
+    /**
+     * Remembers a line sent to the channel, forgetting the oldest lines if
+     * there is no room for it.
+     *
+     * @param millis when it was sent
+     * @param frame the line as it went out, see Message.getFrame()
+     */
+    public void add(long millis, byte[] frame) {
+        int size = HEADER + frame.length;
+        if (size > Settings.HISTORY_BYTES) {
+            return; // too long to keep, or no history at all
+        }
+        if (ring == null) {
+            ring = new byte[Settings.HISTORY_BYTES];
+        }
+        while (ring.length - used < size) {
+            int oldest = HEADER + readInt(head);
+            head = (head + oldest) % ring.length;
+            used -= oldest;
+            count--;
+        }
+        writeInt(tail, frame.length);
+        writeLong((tail + 4) % ring.length, millis);
+        write((tail + HEADER) % ring.length, frame);
+        tail = (tail + size) % ring.length;
+        used += size;
+        count++;
+        next++;
+    }
+
+    /**
+     * @return long the msgid of the oldest line still kept
+     */
+    public long first() {
+        return next - count;
+    }
+
+    /**
+     * @return long the msgid the next line will get
+     */
+    public long end() {
+        return next;
+    }
+
+    /**
+     * @param millis a time
+     * @return long the msgid of the first line kept which was sent at millis
+     * or later, end() if none was
+     */
+    public long seek(long millis) {
+        long id = first();
+        int at = head;
+        for (int i = 0; i < count; i++, id++) {
+            if (readLong((at + 4) % ring.length) >= millis) {
+                return id;
+            }
+            at = (at + HEADER + readInt(at)) % ring.length;
+        }
+        return next;
+    }
+
+    /**
+     * Hands the lines from msgid from up to (not including) to to out,
+     * oldest first.
+     *
+     * @param from the first msgid, lines older than first() are gone
+     * @param to the msgid to stop at, lines from end() on are not there yet
+     * @param out gets each line
+     * @return int how many lines out got
+     */
+    public int read(long from, long to, Reader out) {
+        from = Math.max(from, first());
+        to = Math.min(to, next);
+        if (from >= to) {
+            return 0; // past the ring's tail are only the bytes of old lines
+        }
+        int at = head;
+        for (long id = first(); id < from; id++) {
+            at = (at + HEADER + readInt(at)) % ring.length;
+        }
+        int n = 0;
+        for (long id = from; id < to; id++, n++) {
+            byte[] frame = new byte[readInt(at)];
+            read((at + HEADER) % ring.length, frame);
+            out.line(id, readLong((at + 4) % ring.length), frame);
+            at = (at + HEADER + frame.length) % ring.length;
+        }
+        return n;
+    }
+
+    private int readInt(int at) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (ring[(at + i) % ring.length] & 0xff);
+        }
+        return v;
+    }
+
+    private long readLong(int at) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (ring[(at + i) % ring.length] & 0xff);
+        }
+        return v;
+    }
+
+    private void writeInt(int at, int v) {
+        for (int i = 3; i >= 0; i--, v >>>= 8) {
+            ring[(at + i) % ring.length] = (byte) v;
+        }
+    }
+
+    private void writeLong(int at, long v) {
+        for (int i = 7; i >= 0; i--, v >>>= 8) {
+            ring[(at + i) % ring.length] = (byte) v;
+        }
+    }
+
+    private void write(int at, byte[] b) {
+        int first = Math.min(b.length, ring.length - at);
+        System.arraycopy(b, 0, ring, at, first);
+        System.arraycopy(b, first, ring, 0, b.length - first);
+    }
+
+    private void read(int at, byte[] b) {
+        int first = Math.min(b.length, ring.length - at);
+        System.arraycopy(ring, at, b, 0, first);
+        System.arraycopy(ring, 0, b, first, b.length - first);
+    }
+}
@@ -0,0 +1,151 @@
+package chatland;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reverse DNS for the host part of "nick!~user@host". Looking a hostname up
+ * can take seconds, and it used to be done by the IRCWorker on every JOIN,
+ * PART, QUIT, NICK, channel PRIVMSG and WHO line, stalling every user of it.
+ *
+ * Now a connection's address is looked up once, by a couple of resolver
+ * threads, as soon as it is accepted. The answer is kept for
+ * Settings.DNS_TTL_SECONDS, so a client which reconnects (or a second client
+ * from the same address) does not cause another lookup. Until the answer
+ * arrives the numeric address is used instead.
+ *
+ * @author ultasun
+ */
+public final class HostCache {
+
+    // past this many addresses, the expired ones are forgotten
+    private static final int TIDY_AT = 4096;
+    // but at most this often, since that means looking at every one of them
+    private static final long TIDY_EVERY = TimeUnit.MINUTES.toNanos(1);
+
+    private static final ConcurrentHashMap<InetAddress, Entry> CACHE
+            = new ConcurrentHashMap<>();
+    private static final ExecutorService RESOLVER
+            = Executors.newFixedThreadPool(2, new Resolvers());
+    // System.nanoTime() after which the cache may be tidied again
+    private static final AtomicLong NEXT_TIDY
+            = new AtomicLong(System.nanoTime());
+
+    private static final class Entry {
+
+        final CompletableFuture<String> name;
+        final long expires;
+
+        Entry(CompletableFuture<String> name, long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Resolvers implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Resolver-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private HostCache() {
+    }
+
+    /**
+     * Starts looking an address up, if it is not known already. Called right
+     * after accept(), so the answer is usually in by the time the client has
+     * registered.
+     *
+     * @param addr the client's address
+     */
+    public static void prefetch(InetAddress addr) {
+        entry(addr);
+    }
+
+    /**
+     * Never waits for DNS.
+     *
+     * @param addr the client's address
+     * @param whenResolved called with the hostname later on, if it was not
+     * known yet (may be null)
+     * @return String the hostname if it is known, otherwise the numeric address
+     */
+    public static String lookup(InetAddress addr,
+            Consumer<String> whenResolved) {
+        CompletableFuture<String> name = entry(addr).name;
+        if (name.isDone()) {
+            return name.getNow(addr.getHostAddress());
+        }
+        if (whenResolved != null) {
+            name.thenAccept(whenResolved);
+        }
+        return addr.getHostAddress();
+    }
+
+    private static Entry entry(InetAddress addr) {
+        long now = System.nanoTime();
+        Entry e = CACHE.get(addr);
+        if (e != null && now - e.expires < 0) {
+            return e;
+        }
+        Entry fresh = new Entry(new CompletableFuture<>(), now
+                + TimeUnit.SECONDS.toNanos(Settings.DNS_TTL_SECONDS));
+        // only one thread gets to start the lookup
+        Entry won = (e == null) ? CACHE.putIfAbsent(addr, fresh)
+                : (CACHE.replace(addr, e, fresh) ? null : CACHE.get(addr));
+        if (won != null) {
+            return won;
+        }
+        tidy(now);
+        resolve(addr, fresh.name);
+        return fresh;
+    }
+
+    /**
+     * Forgets the expired addresses, if there are a lot of addresses and
+     * nobody did that lately. Only one thread does it at a time.
+     */
+    private static void tidy(final long now) {
+        long next = NEXT_TIDY.get();
+        if (CACHE.size() > TIDY_AT && now - next >= 0
+                && NEXT_TIDY.compareAndSet(next, now + TIDY_EVERY)) {
+            CACHE.values().removeIf(old -> now - old.expires >= 0);
+        }
+    }
+
+    private static void resolve(InetAddress addr,
+            CompletableFuture<String> name) {
+        if (!Settings.DNS_RESOLVE) {
+            name.complete(addr.getHostAddress());
+            return;
+        }
+        RESOLVER.execute(() -> {
+            String host;
+            try {
+                // gives the numeric address back if there is no name
+                host = addr.getHostName();
+            } catch (RuntimeException e) {
+                host = addr.getHostAddress();
+            }
+            if (Log.DEBUG) {
+                Log.debug("resolver> " + addr.getHostAddress() + " is "
+                        + host);
+            }
+            name.complete(host);
+        });
+    }
+}
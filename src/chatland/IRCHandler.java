@@ -1,11 +1,17 @@
 package chatland;
 
-import chatland.threads.ClientOutput;
-import chatland.threads.ClientInput;
 import chatland.threads.IRCWorker;
+import chatland.threads.ThreadedTransport;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * As the name implies, this class bridges the ClientInput/ClientOutput threads
@@ -28,32 +34,93 @@ import java.util.LinkedList;
  */
 public class IRCHandler {
 
-    private String handle;
+    private static final AtomicLong IDS = new AtomicLong();
+
+    // never reused while the server runs, the Cluster knows us by it
+    private final long id;
+    // true if we stand in for a user on another node, see RemoteTransport
+    private final boolean remote;
+
+    // read by the IRCWorkers owning our channels, written by our home one
+    private volatile String handle;
     private final String user, real;
-    private final Socket client;
-    private final Thread input, output;
+    private final Transport transport;
+    private final InetAddress address;
+    // filled in by HostCache, the numeric address until DNS has answered
+    private volatile String host;
+    // "handle!~user@host", rendered again only when handle or host change
+    private volatile String hostLine;
 
-    private final LinkedList<Message> inputQueue, outputQueue;
+    private final ConcurrentLinkedQueue<Message> inputQueue;
+    private final SendQueue outputQueue;
     private final IRCWorker toNotify;
 
+    // true while this IRCHandler sits in the IRCWorker's ready queue
+    private final AtomicBoolean scheduled;
+
+    // System.nanoTime() of the last line our client sent, for the Keepalive
+    private volatile long lastActive;
+    // set once we have quit, so the Keepalive can forget about us
+    private volatile boolean gone;
+
+    private final FloodControl flood;
+
+    // set by a successful OPER, lets us use STATS
+    private volatile boolean operator;
+
+    // upper case names of the channels we are in, only touched by our home
+    // IRCWorker, so QUIT and NICK know who to tell
+    private final HashSet<String> channels;
+    // the nicks we MONITOR, folded to as we typed them, only touched by our
+    // home IRCWorker
+    private final HashMap<String, String> monitored;
+
     public IRCHandler(IRCWorker toNotify,
             String handle, String user, String real, Socket s)
             throws IOException {
+        this(toNotify, handle, user, real, new ThreadedTransport(s));
+    }
+
+    public IRCHandler(IRCWorker toNotify,
+            String handle, String user, String real, Transport t)
+            throws IOException {
         this.toNotify = toNotify;
+        id = IDS.incrementAndGet();
+        remote = t.isRemote();
         this.handle = handle;
         this.user = user;
         this.real = real;
-        this.client = s;
-        inputQueue = new LinkedList<>();
-        outputQueue = new LinkedList<>();
+        this.transport = t;
+        inputQueue = new ConcurrentLinkedQueue<>();
+        outputQueue = new SendQueue();
+        scheduled = new AtomicBoolean();
+        channels = new HashSet<>();
+        monitored = new HashMap<>();
+        lastActive = System.nanoTime();
+        flood = new FloodControl();
 
-        input = new ClientInput(this);
-        output = new ClientOutput(this);
+        transport.attach(this);
+        address = t.getSocket().getInetAddress();
+        if (remote) {
+            host = t.getHost();
+        } else {
+            host = HostCache.lookup(address, this::setHost);
+        }
+        renderHostLine();
     }
-    
+
+    /**
+     * Called by ChatLand.registerHandle() once our handle is ours. Until then
+     * nothing of ours is queued on an IRCWorker, so an IRCHandler whose
+     * handle was taken, or whose registration timed out, is just forgotten.
+     */
     public void start() {
-        input.start();
-        output.start();        
+        // do some things upon a new connection
+        if (!remote) {
+            insertInputQueue(new Message(this, "WELCOMEMSG"));
+            insertInputQueue(new Message(this, "MOTD"));
+        }
+        transport.start();
     }
 
     public IRCWorker getIRCWorkerToNotify() {
@@ -61,27 +128,65 @@ public class IRCHandler {
     }
 
     public void quit() {
-        try {
-            input.interrupt();
-            output.interrupt();
-            client.close();
-        } catch (IOException ex) {
-            System.out.println("Couldn't disconnect?");
+        gone = true;
+        inputQueue.clear();
+        transport.close();
+        if (!remote) {
+            Admission.left(address);
         }
     }
 
     /**
-     * Renders a host string the way IRC likes to see them.
+     * The host string the way IRC likes to see them. It is rendered by
+     * renderHostLine(), not on every call.
      *
      * @return String containing a full address of the user
      */
     public String getHostLine() {
-        return handle + "!~" + user + "@"
-                + client.getInetAddress().getHostName();
+        return hostLine;
+    }
+
+    /**
+     * handle and host are set by different threads (our IRCWorker and a
+     * HostCache resolver), so rendering is synchronized: whichever renders
+     * last sees both new values.
+     */
+    private synchronized void renderHostLine() {
+        hostLine = handle + "!~" + user + "@" + host;
+    }
+
+    private void setHost(String resolved) {
+        host = resolved;
+        renderHostLine();
+    }
+
+    /**
+     * @return String the user's hostname, or numeric address
+     */
+    public String getHost() {
+        return host;
     }
 
     public Socket getSocket() {
-        return client;
+        return transport.getSocket();
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return long a number no other IRCHandler of this server has
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return boolean true if the user is on another node of the Cluster
+     */
+    public boolean isRemote() {
+        return remote;
     }
 
     public String getHandle() {
@@ -96,62 +201,192 @@ public class IRCHandler {
         return real;
     }
 
+    /*
+     * The queues are a java.util.concurrent queue and a SendQueue rather than
+     * LinkedLists guarded by synchronized/wait(). Those would pin a virtual
+     * thread to its carrier while it waits, which defeats the point of the
+     * "virtual" transport. The SendQueue also keeps a client which stops
+     * reading from filling up the heap.
+     *
+     * The IRCWorker no longer looks through every IRCHandler for input.
+     * Instead an IRCHandler puts itself in the IRCWorker's ready queue when its
+     * input queue stops being empty, and the IRCWorker only ever looks there.
+     */
     public void insertInputQueue(Message m) {
-        synchronized (inputQueue) {
-            inputQueue.addLast(m);
-            inputQueue.notifyAll();
+        inputQueue.add(m);
+        if (scheduled.compareAndSet(false, true)) {
+            toNotify.schedule(this);
         }
-        synchronized (toNotify) {
-            toNotify.notifyAll();
+    }
+
+    /**
+     * Takes the next Message from the input queue. Only the IRCWorker calls
+     * this, after taking us out of its ready queue. If more input is waiting
+     * we go back to the end of the ready queue, so every user gets a turn.
+     *
+     * @return the next Message, or null if the input queue was cleared
+     */
+    public Message pollInputQueue() {
+        Message result = inputQueue.poll();
+        scheduled.set(false);
+        if (!inputQueue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            toNotify.schedule(this);
         }
+        return result;
     }
 
     public void insertOutputQueue(Message m) {
-        synchronized (outputQueue) {
-            outputQueue.addLast(m);
-            outputQueue.notifyAll();
+        if (remote) {
+            return; // its own node sends it whatever it needs to see
+        }
+        switch (outputQueue.offer(m)) {
+            case QUEUED:
+                Metrics.queued(m);
+                transport.outputReady();
+                break;
+            case OVERFLOWED:
+                // the IRCWorker tells everybody and disconnects us
+                Log.info(handle + " SendQ exceeded");
+                insertInputQueue(new Message(this, "QUIT :SendQ exceeded"));
+                break;
+            default:
+                break;
         }
     }
 
-    public Message removeOutputQueue() throws InterruptedException {
-        Message result;
-
-        synchronized (outputQueue) {
-            while (outputQueue.isEmpty()) {
-                System.out.println("IRCHandler.removeOutputQueue()> waiting");
-                outputQueue.wait();
-            }
-            result = outputQueue.removeFirst();
-        }
-        return result;
+    /**
+     * Takes the next Message from the output queue without waiting, for
+     * transports which can not block.
+     *
+     * @return the next Message, or null if the output queue is empty
+     */
+    public Message pollOutputQueue() {
+        return outputQueue.poll();
     }
 
-    public Message removeInputQueue() throws InterruptedException {
-        Message result;
+    /**
+     * Takes the next Message from the output queue, waiting at most timeout
+     * nanoseconds for one to arrive.
+     *
+     * @param timeout nanoseconds to wait
+     * @return the next Message, or null if none arrived in time
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public Message pollOutputQueue(long timeout) throws InterruptedException {
+        return outputQueue.poll(timeout);
+    }
 
-        synchronized (inputQueue) {
-            while (inputQueue.isEmpty()) {
-                System.out.println("IRCHandler.removeInputQueue()> waiting");
-                inputQueue.wait();
+    public Message removeOutputQueue() throws InterruptedException {
+        Message result = outputQueue.poll();
+        if (result == null) {
+            if (Log.TRACE) {
+                Log.trace("IRCHandler.removeOutputQueue()> waiting");
             }
-            result = inputQueue.removeFirst();
+            result = outputQueue.take();
         }
         return result;
     }
 
     public boolean inputQueueEmpty() {
-        synchronized (inputQueue) {
-            return inputQueue.isEmpty();
-        }
+        return inputQueue.isEmpty();
     }
 
     public boolean outputQueueEmpty() {
-        synchronized (outputQueue) {
-            return outputQueue.isEmpty();
-        }
+        return outputQueue.isEmpty();
+    }
+
+    /**
+     * @return int how many Messages are waiting to be sent to the client
+     */
+    public int getOutputQueueDepth() {
+        return outputQueue.size();
+    }
+
+    /**
+     * @return int how many Messages are waiting for the IRCWorker
+     */
+    public int getInputQueueDepth() {
+        return inputQueue.size();
+    }
+
+    /**
+     * @return long how many bytes are waiting to be sent to the client
+     */
+    public long getOutputQueueBytes() {
+        return outputQueue.bytes();
+    }
+
+    /**
+     * Notes that we joined a channel. The home IRCWorker calls this when it
+     * sends the JOIN on to the channel's owner, not when the owner has done
+     * it, so a QUIT right after a JOIN still finds the channel.
+     *
+     * @param channel the channel name, in any case
+     */
+    public void joined(String channel) {
+        channels.add(channel.toUpperCase());
+    }
+
+    public void parted(String channel) {
+        channels.remove(channel.toUpperCase());
+    }
+
+    /**
+     * Only for our home IRCWorker.
+     *
+     * @return the upper case names of the channels we are in
+     */
+    public Set<String> getChannels() {
+        return channels;
+    }
+
+    /**
+     * Only for our home IRCWorker, and the Monitor on its behalf.
+     *
+     * @return the nicks we watch with MONITOR, folded to as typed
+     */
+    public Map<String, String> getMonitored() {
+        return monitored;
+    }
+
+    /**
+     * Called by the transport whenever it reads from our client. Only that
+     * counts: the lines the server puts in our input queue itself (WELCOMEMSG,
+     * the rest of a CHATHISTORY, a QUIT) say nothing about the client being
+     * there.
+     */
+    public void active() {
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * @return long the System.nanoTime() our client last sent something
+     */
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    public FloodControl getFloodControl() {
+        return flood;
+    }
+
+    /**
+     * @return boolean true once we have quit
+     */
+    public boolean isGone() {
+        return gone;
+    }
+
+    public boolean isOperator() {
+        return operator;
+    }
+
+    public void setOperator(boolean operator) {
+        this.operator = operator;
     }
 
     public void setHandle(String newHandle) {
         handle = newHandle;
+        renderHostLine();
     }
 }
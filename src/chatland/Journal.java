@@ -0,0 +1,326 @@
+package chatland;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the channels and their topics across a restart, if
+ * Settings.JOURNAL_DIR says where.
+ *
+ * Every channel created and every topic set is a change. The IRCWorker only
+ * hands the change over with created() or topic(), which puts it in a queue,
+ * and the Journal's own thread writes whatever has piled up every
+ * Settings.JOURNAL_FLUSH_MILLIS to channels.journal, in one go, and forces it
+ * to disk once for the lot.
+ *
+ * channels.journal is a memory mapped file of Settings.JOURNAL_BYTES, written
+ * from the start. Each change is a record: its length, a CRC32, and the
+ * change itself. A record of length 0 (the file is all zeroes to begin with)
+ * is where the journal ends, and a record whose CRC32 is wrong is where the
+ * server died in the middle of writing it, so it ends there too.
+ *
+ * Every Settings.JOURNAL_COMPACT_SECONDS, or when the journal is full, the
+ * Journal writes every channel there is to channels.snapshot (a new file,
+ * moved over the old one) and starts the journal over. A restarted server
+ * reads the snapshot and then the journal in load(), before anybody can
+ * connect. Reading the journal again on top of a snapshot taken after it
+ * (if the server died right between the two) comes out the same, since the
+ * snapshot is just where the journal led.
+ *
+ * @author ultasun
+ */
+public class Journal implements Runnable {
+
+    private static final byte CREATE = 1, TOPIC = 2;
+    private static final String SNAPSHOT = "channels.snapshot";
+    private static final String JOURNAL = "channels.journal";
+
+    private final Path dir;
+    private final ConcurrentLinkedQueue<Change> changes;
+    // upper case channel name to topic, as the journal and snapshot say,
+    // only touched by load() and then the Journal's thread
+    private final LinkedHashMap<String, String> state;
+    private final CRC32 crc;
+    private final Thread thread;
+    private FileChannel file;
+    private MappedByteBuffer journal;
+    private ByteBuffer scratch;
+    private long compactedAt;
+    private volatile boolean closed;
+
+    private static final class Change {
+
+        final byte type;
+        final String channel, topic;
+
+        Change(byte type, String channel, String topic) {
+            this.type = type;
+            this.channel = channel;
+            this.topic = topic;
+        }
+    }
+
+    /**
+     * @param dir the directory for the snapshot and journal, empty for no
+     * Journal at all (then nothing is remembered)
+     */
+    public Journal(String dir) {
+        this.dir = dir.isEmpty() ? null : Paths.get(dir);
+        changes = new ConcurrentLinkedQueue<>();
+        state = new LinkedHashMap<>();
+        crc = new CRC32();
+        scratch = ByteBuffer.allocate(1024);
+        thread = new Thread(this, "Journal-writer");
+        thread.setDaemon(true);
+        closed = false;
+    }
+
+    /**
+     * Reads the snapshot and the journal, compacts them into a new snapshot,
+     * and gets the journal ready for writing. Call it once, before start().
+     *
+     * @return the channels that were remembered, upper case name to topic
+     * @throws IOException if the files can't be read or written
+     */
+    public Map<String, String> load() throws IOException {
+        if (dir == null) {
+            return Collections.emptyMap();
+        }
+        Files.createDirectories(dir);
+        int records = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            records += replay(ByteBuffer.wrap(Files.readAllBytes(snapshot)));
+        }
+        Path journalPath = dir.resolve(JOURNAL);
+        if (Files.exists(journalPath)) {
+            records += replay(ByteBuffer.wrap(
+                    Files.readAllBytes(journalPath)));
+        }
+        Log.debug("journal> read " + records + " records");
+
+        // the snapshot goes first, so the journal is only emptied once
+        // everything in it is safe
+        writeSnapshot();
+        file = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        file.truncate(0);
+        journal = file.map(FileChannel.MapMode.READ_WRITE, 0,
+                Settings.JOURNAL_BYTES);
+        compactedAt = System.nanoTime();
+        return Collections.unmodifiableMap(new LinkedHashMap<>(state));
+    }
+
+    public void start() {
+        if (dir == null || journal == null) {
+            return;
+        }
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(this::close, "Journal-close"));
+    }
+
+    /**
+     * A channel was created. Only queues the change.
+     *
+     * @param channel the upper case channel name
+     */
+    public void created(String channel) {
+        if (dir != null) {
+            changes.add(new Change(CREATE, channel, ""));
+        }
+    }
+
+    /**
+     * A channel's topic was set. Only queues the change.
+     *
+     * @param channel the upper case channel name
+     * @param topic the new topic
+     */
+    public void topic(String channel, String topic) {
+        if (dir != null) {
+            changes.add(new Change(TOPIC, channel, topic));
+        }
+    }
+
+    /**
+     * Writes what is still queued and stops the Journal's thread. Run at
+     * shutdown.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+        }
+    }
+
+    @Override
+    public void run() {
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(
+                Settings.JOURNAL_FLUSH_MILLIS);
+        long compactNanos = TimeUnit.SECONDS.toNanos(
+                Settings.JOURNAL_COMPACT_SECONDS);
+        while (true) {
+            boolean last = closed;
+            try {
+                if (writeChanges() > 0) {
+                    journal.force();
+                }
+                if (journal.position() > 0
+                        && System.nanoTime() - compactedAt > compactNanos) {
+                    compact();
+                }
+            } catch (IOException e) {
+                Log.error("journal> " + e.getLocalizedMessage());
+            }
+            if (last) {
+                return;
+            }
+            LockSupport.parkNanos(this, flushNanos);
+        }
+    }
+
+    private int writeChanges() throws IOException {
+        int written = 0;
+        Change c;
+        while ((c = changes.poll()) != null) {
+            apply(c.type, c.channel, c.topic);
+            ByteBuffer record = encode(c.type, c.channel, c.topic);
+            if (journal.remaining() < record.remaining()) {
+                // the snapshot has this change already
+                compact();
+                continue;
+            }
+            journal.put(record);
+            written++;
+        }
+        return written;
+    }
+
+    private void apply(byte type, String channel, String topic) {
+        if (type == TOPIC) {
+            state.put(channel, topic);
+        } else if (!state.containsKey(channel)) {
+            state.put(channel, "");
+        }
+    }
+
+    /**
+     * Writes every channel to a new snapshot and starts the journal over.
+     */
+    private void compact() throws IOException {
+        writeSnapshot();
+        int used = journal.position();
+        journal.position(0);
+        byte[] zeroes = new byte[Math.min(used, 4096)];
+        while (journal.position() < used) {
+            journal.put(zeroes, 0, Math.min(zeroes.length,
+                    used - journal.position()));
+        }
+        journal.position(0);
+        journal.force();
+        compactedAt = System.nanoTime();
+        Log.debug("journal> compacted " + state.size() + " channels");
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, String> e : state.entrySet()) {
+                ByteBuffer record = encode(TOPIC, e.getKey(), e.getValue());
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the record for a change, in the scratch buffer, ready to be
+     * read
+     */
+    private ByteBuffer encode(byte type, String channel, String topic) {
+        byte[] name = channel.getBytes(StandardCharsets.UTF_8);
+        byte[] text = topic.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + name.length + 4 + text.length;
+        if (scratch.capacity() < length + 8) {
+            scratch = ByteBuffer.allocate(length + 8);
+        }
+        scratch.clear();
+        scratch.putInt(length);
+        scratch.putInt(0); // the CRC32, once we know it
+        scratch.put(type);
+        scratch.putInt(name.length).put(name);
+        scratch.putInt(text.length).put(text);
+        crc.reset();
+        crc.update(scratch.array(), 8, length);
+        scratch.putInt(4, (int) crc.getValue());
+        scratch.flip();
+        return scratch;
+    }
+
+    /**
+     * Applies every good record in b, up to the end or the first bad one.
+     *
+     * @return int how many records there were
+     */
+    private int replay(ByteBuffer b) {
+        int records = 0;
+        while (b.remaining() >= 8) {
+            int length = b.getInt();
+            int expected = b.getInt();
+            if (length < 9 || length > b.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(b.array(), b.position(), length);
+            if ((int) crc.getValue() != expected) {
+                Log.warn("journal> a damaged record, reading stops there");
+                break;
+            }
+            byte type = b.get();
+            String channel = string(b);
+            String topic = string(b);
+            if (channel == null || topic == null) {
+                break;
+            }
+            apply(type, channel, topic);
+            records++;
+        }
+        return records;
+    }
+
+    private static String string(ByteBuffer b) {
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining()) {
+            return null;
+        }
+        String s = new String(b.array(), b.position(), n,
+                StandardCharsets.UTF_8);
+        b.position(b.position() + n);
+        return s;
+    }
+}
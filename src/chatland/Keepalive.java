@@ -0,0 +1,171 @@
+package chatland;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PINGs users who have gone quiet, and disconnects the ones who don't answer.
+ *
+ * A user who has sent nothing for Settings.PING_SECONDS gets a PING. If
+ * nothing at all (a PONG or anything else) comes back within
+ * Settings.PING_TIMEOUT_SECONDS, the user QUITs with "Ping timeout", the same
+ * way as if the client had sent the QUIT itself.
+ *
+ * The timing is a hashed wheel: a ring of slots, one per second, and every
+ * user waits in the slot of the second they are next due to be looked at.
+ * Each tick only looks at one slot, so the cost of a tick does not depend on
+ * how many users there are, only on how many are due. Users are not moved
+ * around when they send something, IRCHandler just notes the time. When their
+ * slot comes up they are put back in the right slot for that time, or PINGed.
+ *
+ * Everything except watch() happens on the Keepalive's own thread.
+ *
+ * @author ultasun
+ */
+public class Keepalive implements Runnable {
+
+    private static final int SLOTS = 512;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Message ping;
+    private final Thread thread;
+    private final Entry[] wheel;
+    // users to start watching, handed over by the registering threads
+    private final ConcurrentLinkedQueue<Entry> added;
+    private final AtomicLong pings, timeouts;
+    private final long pingNanos, timeoutNanos;
+    private long tick;
+
+    private static final class Entry {
+
+        final IRCHandler h;
+        long due;
+        boolean pinged;
+        long pingedAt;
+        Entry next;
+
+        Entry(IRCHandler h) {
+            this.h = h;
+        }
+    }
+
+    public Keepalive(String serverName) {
+        ping = Message.shared("PING :" + serverName);
+        thread = new Thread(this, "Keepalive");
+        thread.setDaemon(true);
+        wheel = new Entry[SLOTS];
+        added = new ConcurrentLinkedQueue<>();
+        pings = new AtomicLong();
+        timeouts = new AtomicLong();
+        pingNanos = TimeUnit.SECONDS.toNanos(Settings.PING_SECONDS);
+        timeoutNanos = TimeUnit.SECONDS.toNanos(Settings.PING_TIMEOUT_SECONDS);
+        tick = 0;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Starts keeping an eye on a newly registered user.
+     *
+     * @param h the IRCHandler
+     */
+    public void watch(IRCHandler h) {
+        added.add(new Entry(h));
+    }
+
+    /**
+     * @return long how many PINGs were sent to quiet users
+     */
+    public long getPings() {
+        return pings.get();
+    }
+
+    /**
+     * @return long how many users were disconnected for not answering
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public void run() {
+        long started = System.nanoTime();
+        while (!Thread.interrupted()) {
+            long wake = started + (tick + 1) * TICK_NANOS;
+            long now;
+            while ((now = System.nanoTime()) - wake < 0) {
+                LockSupport.parkNanos(this, wake - now);
+            }
+            tick++;
+            Entry e;
+            while ((e = added.poll()) != null) {
+                schedule(e, ticks(pingNanos));
+            }
+            expire(now);
+        }
+    }
+
+    private static long ticks(long nanos) {
+        return Math.max(1, (nanos + TICK_NANOS - 1) / TICK_NANOS);
+    }
+
+    private void schedule(Entry e, long inTicks) {
+        e.due = tick + inTicks;
+        int slot = (int) (e.due % SLOTS);
+        e.next = wheel[slot];
+        wheel[slot] = e;
+    }
+
+    /**
+     * Looks at everybody in this tick's slot whose time has come. The others
+     * in the slot are due a whole turn (or more) of the wheel later.
+     */
+    private void expire(long now) {
+        int slot = (int) (tick % SLOTS);
+        Entry e = wheel[slot];
+        wheel[slot] = null;
+        while (e != null) {
+            Entry next = e.next;
+            if (e.due > tick) {
+                e.next = wheel[slot];
+                wheel[slot] = e;
+            } else {
+                check(e, now);
+            }
+            e = next;
+        }
+    }
+
+    private void check(Entry e, long now) {
+        IRCHandler h = e.h;
+        if (h.isGone()) {
+            return; // forget about it
+        }
+        long lastActive = h.getLastActive();
+        if (e.pinged && lastActive - e.pingedAt > 0) {
+            e.pinged = false; // it answered
+        }
+        if (e.pinged) {
+            timeouts.incrementAndGet();
+            Log.info(h.getHandle() + " ping timeout");
+            h.insertInputQueue(new Message(h, "QUIT :Ping timeout: "
+                    + TimeUnit.NANOSECONDS.toSeconds(now - lastActive)
+                    + " seconds"));
+            return;
+        }
+        long idle = now - lastActive;
+        if (idle < pingNanos) {
+            schedule(e, ticks(pingNanos - idle));
+            return;
+        }
+        e.pinged = true;
+        e.pingedAt = now;
+        pings.incrementAndGet();
+        h.insertOutputQueue(ping);
+        schedule(e, ticks(timeoutNanos));
+    }
+}
@@ -0,0 +1,122 @@
+package chatland;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into buckets about 6% wide: values below 32 get a bucket
+ * each, above that every power of two is split into 16. Recording is a few
+ * atomic increments and no allocation, so it can stay on for every command
+ * the server runs. Percentiles are read from the buckets, so they are as good
+ * as the buckets are wide.
+ *
+ * The server records nanoseconds, LoadGen microseconds. Either way a run of
+ * millions can report its percentiles without keeping every sample.
+ *
+ * @author ultasun
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUBS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total, sum, max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(LINEAR + (64 - 5) * SUBS);
+        total = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    private static int index(long v) {
+        if (v < LINEAR) {
+            return (int) Math.max(0, v);
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (e - SUB_BITS)) & (SUBS - 1);
+        return LINEAR + (e - 5) * SUBS + sub;
+    }
+
+    private static long lowest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int e = (index - LINEAR) / SUBS + 5;
+        int sub = (index - LINEAR) % SUBS;
+        return (long) (SUBS + sub) << (e - SUB_BITS);
+    }
+
+    public void record(long duration) {
+        counts.incrementAndGet(index(duration));
+        total.incrementAndGet();
+        sum.addAndGet(duration);
+        long m;
+        while (duration > (m = max.get())
+                && !max.compareAndSet(m, duration)) {
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return long every recorded duration added up
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Adds another histogram's counts into this one, e.g. one per IRCWorker
+     * into a total.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long m, o = other.max.get();
+        while (o > (m = max.get()) && !max.compareAndSet(m, o)) {
+        }
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return long the middle of the bucket the percentile falls in (0 with
+     * nothing recorded)
+     */
+    public long percentile(double fraction) {
+        long n = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= wanted) {
+                long low = lowest(i);
+                long high = (i + 1 < snapshot.length) ? lowest(i + 1) : low;
+                return Math.min(max.get(), (low + high) / 2);
+            }
+        }
+        return max.get();
+    }
+}
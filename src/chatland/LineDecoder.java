@@ -0,0 +1,200 @@
+package chatland;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cuts the bytes from a client into lines. This replaces the Scanner the
+ * threaded transport used to read with, which matched a regular expression
+ * against a CharBuffer for every line, and the NIOTransport's own byte loop.
+ *
+ * The bytes are searched for the LF at the end of a line right where they
+ * were read, and only the bytes of the line are copied, into one array which
+ * is used for every line. A line is only turned into a String once it is
+ * complete, so the one String is all a line costs.
+ *
+ * RFC 1459 allows 512 bytes a line, CR LF included. The first 510 bytes of a
+ * longer line are kept and the rest is thrown away. A line is decoded as
+ * UTF-8, or as Latin-1 if it is not valid UTF-8 (older clients send that),
+ * and a line which is all ASCII is copied without decoding at all. Empty lines
+ * are skipped, as RFC 1459 says they should be.
+ *
+ * The Links between the nodes of a Cluster read with a LineDecoder too, with
+ * a longer limit (see LineDecoder(int)).
+ *
+ * A LineDecoder belongs to one connection, and only one thread uses it at a
+ * time.
+ *
+ * @author ultasun
+ */
+public class LineDecoder {
+
+    // the longest line from a client, CR LF included
+    public static final int MAX_LINE = 512;
+
+    private final byte[] line;
+    private final ByteBuffer lineBytes;
+    private final CharsetDecoder utf8;
+    private final CharBuffer chars;
+    private int length;
+    // true once the line has gone past line.length
+    private boolean truncated;
+    // what readLine() has read and not cut up yet
+    private ByteBuffer input;
+
+    public LineDecoder() {
+        this(MAX_LINE);
+    }
+
+    /**
+     * @param maxLine the longest line kept, CR LF included
+     */
+    public LineDecoder(int maxLine) {
+        line = new byte[maxLine];
+        lineBytes = ByteBuffer.wrap(line);
+        utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        chars = CharBuffer.allocate(maxLine);
+        length = 0;
+        truncated = false;
+    }
+
+    /**
+     * Takes bytes from b up to the end of the next line. If b runs out first,
+     * what there was of the line is kept until the next call.
+     *
+     * @param b bytes from the client, in a heap ByteBuffer ready to be read
+     * @return String the next line, without its CR LF, or null once b is
+     * used up
+     */
+    public String next(ByteBuffer b) {
+        byte[] a = b.array();
+        int offset = b.arrayOffset();
+        int end = offset + b.limit();
+        int i = offset + b.position();
+        while (i < end) {
+            int start = i;
+            while (i < end && a[i] != '\n') {
+                i++;
+            }
+            int n = Math.min(i - start, line.length - length);
+            System.arraycopy(a, start, line, length, n);
+            length += n;
+            if (n < i - start) {
+                truncated = true;
+            }
+            if (i == end) {
+                break;
+            }
+            i++; // past the LF
+            String s = finish();
+            if (s != null) {
+                b.position(i - offset);
+                return s;
+            }
+        }
+        b.position(end - offset);
+        return null;
+    }
+
+    /**
+     * Reads the next line from a blocking stream.
+     *
+     * @param in the client's socket's InputStream
+     * @return String the next line, without its CR LF, or null if the client
+     * closed the connection
+     * @throws IOException if reading fails
+     */
+    public String readLine(InputStream in) throws IOException {
+        if (input == null) {
+            input = ByteBuffer.allocate(4096);
+            input.limit(0);
+        }
+        while (true) {
+            String s = next(input);
+            if (s != null) {
+                return s;
+            }
+            int n = in.read(input.array());
+            if (n < 0) {
+                return null;
+            }
+            input.position(0);
+            input.limit(n);
+        }
+    }
+
+    /**
+     * The LF was found: makes a String of the line and starts the next one.
+     *
+     * @return String the line, null if it was empty
+     */
+    private String finish() {
+        int end = length;
+        if (end > 0 && line[end - 1] == '\r') {
+            end--;
+        }
+        if (end > line.length - 2) {
+            end = line.length - 2;
+            truncated = true;
+        }
+        if (truncated) {
+            end = lastCharacter(end);
+        }
+        length = 0;
+        truncated = false;
+        return end == 0 ? null : decode(end);
+    }
+
+    private String decode(int end) {
+        for (int i = 0; i < end; i++) {
+            if (line[i] < 0) {
+                return decodeUTF8(end);
+            }
+        }
+        // plain ASCII, the same in Latin-1 and copied as it is
+        return new String(line, 0, end, StandardCharsets.ISO_8859_1);
+    }
+
+    private String decodeUTF8(int end) {
+        lineBytes.position(0).limit(end);
+        chars.clear();
+        utf8.reset();
+        CoderResult r = utf8.decode(lineBytes, chars, true);
+        if (!r.isError()) {
+            r = utf8.flush(chars);
+        }
+        if (r.isError()) {
+            return new String(line, 0, end, StandardCharsets.ISO_8859_1);
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * A truncated line may end in the middle of a UTF-8 character. Leaves
+     * that character out, so the line is still valid UTF-8.
+     *
+     * @return int where the line ends without it
+     */
+    private int lastCharacter(int end) {
+        int lead = end - 1;
+        while (lead >= 0 && lead > end - 4 && (line[lead] & 0xc0) == 0x80) {
+            lead--;
+        }
+        if (lead < 0 || (line[lead] & 0x80) == 0) {
+            return end;
+        }
+        int size = (line[lead] & 0xe0) == 0xc0 ? 2
+                : (line[lead] & 0xf0) == 0xe0 ? 3
+                : (line[lead] & 0xf8) == 0xf0 ? 4 : 1;
+        return end - lead < size ? lead : end;
+    }
+}
@@ -0,0 +1,197 @@
+package chatland;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. It replaces the System.out.println() calls which used to
+ * be everywhere: those all took the console's lock, so under load every
+ * client thread waited on every other to print.
+ *
+ * Records below Settings.LOG_LEVEL are not logged. Every line to or from a
+ * client is a TRACE record, and TRACE is off unless asked for. Callers check
+ * the level's flag first, so when a level is off not even the record's String
+ * is built:
+ *
+ * if (Log.TRACE) { Log.trace(handle + " ==> " + line); }
+ *
+ * Records go into a fixed size ring buffer, without taking a lock, and a
+ * background thread writes them out in batches to Settings.LOG_FILE (or
+ * standard output). If the ring is full the record is dropped and counted,
+ * rather than making the caller wait.
+ *
+ * @author ultasun
+ */
+public final class Log {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    public static final boolean WARN = enabled(Level.WARN);
+    public static final boolean INFO = enabled(Level.INFO);
+    public static final boolean DEBUG = enabled(Level.DEBUG);
+    public static final boolean TRACE = enabled(Level.TRACE);
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int BATCH = 512;
+
+    private static final AtomicReferenceArray<Record> RING
+            = new AtomicReferenceArray<>(CAPACITY);
+    // next slot to claim, and the next slot the writer will read
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(Log::drain, "Log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static final class Record {
+
+        final long millis;
+        final Level level;
+        final String text;
+
+        Record(Level level, String text) {
+            this.millis = System.currentTimeMillis();
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+    private Log() {
+    }
+
+    private static boolean enabled(Level level) {
+        return level.compareTo(Settings.LOG_LEVEL) <= 0;
+    }
+
+    public static void error(String text) {
+        append(new Record(Level.ERROR, text));
+    }
+
+    public static void warn(String text) {
+        if (WARN) {
+            append(new Record(Level.WARN, text));
+        }
+    }
+
+    public static void info(String text) {
+        if (INFO) {
+            append(new Record(Level.INFO, text));
+        }
+    }
+
+    public static void debug(String text) {
+        if (DEBUG) {
+            append(new Record(Level.DEBUG, text));
+        }
+    }
+
+    public static void trace(String text) {
+        if (TRACE) {
+            append(new Record(Level.TRACE, text));
+        }
+    }
+
+    /**
+     * @return long how many records were dropped because the ring was full
+     */
+    public static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Claims the next slot, if the writer has emptied it, and fills it in.
+     * A slot is only claimed when it is empty, so no two callers ever share
+     * one and nobody waits for anybody.
+     */
+    private static void append(Record r) {
+        long t;
+        do {
+            t = TAIL.get();
+            if (t - head >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!TAIL.compareAndSet(t, t + 1));
+        RING.lazySet((int) t & (CAPACITY - 1), r);
+    }
+
+    /**
+     * The writer thread: takes records out of the ring in order and writes
+     * them a batch at a time, flushing only when the ring runs dry.
+     */
+    private static void drain() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        Writer out = open();
+        long reported = 0;
+        while (true) {
+            try {
+                int written = 0;
+                Record r;
+                while (written < BATCH && (r = take()) != null) {
+                    out.write(time.format(new Date(r.millis)));
+                    out.write(' ');
+                    out.write(r.level.name());
+                    out.write(' ');
+                    out.write(r.text);
+                    out.write(System.lineSeparator());
+                    written++;
+                }
+                long dropped = DROPPED.get();
+                if (dropped != reported) {
+                    out.write("log> " + (dropped - reported)
+                            + " records dropped, the log could not keep up"
+                            + System.lineSeparator());
+                    reported = dropped;
+                }
+                if (written < BATCH) {
+                    out.flush();
+                    LockSupport.parkNanos(2000000L);
+                }
+            } catch (IOException e) {
+                LockSupport.parkNanos(1000000000L);
+            }
+        }
+    }
+
+    private static Record take() {
+        int i = (int) head & (CAPACITY - 1);
+        Record r = RING.get(i);
+        if (r != null) {
+            RING.lazySet(i, null);
+            head = head + 1;
+        }
+        return r;
+    }
+
+    private static Writer open() {
+        if (Settings.LOG_FILE.isEmpty()) {
+            return new BufferedWriter(new OutputStreamWriter(System.out,
+                    StandardCharsets.UTF_8), 1 << 16);
+        }
+        try {
+            return new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(Settings.LOG_FILE, true),
+                    StandardCharsets.UTF_8), 1 << 16);
+        } catch (IOException e) {
+            System.err.println("log> can't open " + Settings.LOG_FILE + ": "
+                    + e.getLocalizedMessage() + ", logging to the console");
+            return new BufferedWriter(new OutputStreamWriter(System.out,
+                    StandardCharsets.UTF_8), 1 << 16);
+        }
+    }
+}
@@ -1,29 +1,133 @@
 package chatland;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Encapsulates a message.
  *
+ * A Message on its way out to a client is written as its frame: the line in
+ * UTF-8, with every line ending it contains (and the one after it) as CR LF.
+ * A Message meant for many clients, like a line said in a channel, should be
+ * made with Message.shared(). That encodes the frame once, and the same
+ * Message is then put in every recipient's output queue. The frame is never
+ * changed after that, so all the output threads can write it at once.
+ *
+ * Ordinary talk in a channel is made with Message.chatter() instead. It is
+ * shared the same way, but is also droppable: a client whose SendQueue is full
+ * may miss it without getting confused about who is where.
+ *
  * @author ultasun
  */
 public class Message {
 
     private final IRCHandler client;
     private final String line;
+    // null unless made by shared(), then encoded once for every recipient
+    private final byte[] frame;
+    private final boolean droppable;
 
     public Message(IRCHandler h, String line) {
         this.client = h;
         this.line = line;
+        frame = null;
+        droppable = false;
     }
 
     public Message(String line) {
         this.line = line;
         client = null;
+        frame = null;
+        droppable = false;
+    }
+
+    private Message(String line, byte[] frame, boolean droppable) {
+        this.line = line;
+        this.frame = frame;
+        this.droppable = droppable;
+        client = null;
+    }
+
+    /**
+     * Makes a Message to be put in many output queues. Its frame is encoded
+     * here, once, instead of once per recipient.
+     *
+     * @param line the line to send
+     * @return Message with no IRCHandler and a ready made frame
+     */
+    public static Message shared(String line) {
+        return new Message(line, encode(line), false);
+    }
+
+    /**
+     * Like shared(), for lines which a client with a full SendQueue may miss.
+     *
+     * @param line the line to send
+     * @return Message with a ready made frame, which may be dropped
+     */
+    public static Message chatter(String line) {
+        return new Message(line, encode(line), true);
+    }
+
+    /**
+     * Makes a Message of a frame which was sent before, like a line from a
+     * channel's History. It may be dropped like chatter().
+     *
+     * @param frame the encoded line, ending with CR LF
+     * @return Message which sends frame as it is
+     */
+    public static Message replayed(byte[] frame) {
+        int end = frame.length;
+        if (end >= 2 && frame[end - 2] == '\r' && frame[end - 1] == '\n') {
+            end -= 2;
+        }
+        return new Message(new String(frame, 0, end, StandardCharsets.UTF_8),
+                frame, true);
+    }
+
+    /**
+     * Encodes a line for the wire: UTF-8, every "\n" in it becomes CR LF, and
+     * CR LF is added at the end.
+     *
+     * @param line the line to send
+     * @return byte[] the bytes to write to the socket
+     */
+    public static byte[] encode(String line) {
+        if (line.indexOf('\n') >= 0) {
+            line = line.replace("\r\n", "\n").replace("\n", "\r\n");
+        }
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[text.length + 2];
+        System.arraycopy(text, 0, result, 0, text.length);
+        result[text.length] = '\r';
+        result[text.length + 1] = '\n';
+        return result;
     }
 
     public String getLine() {
         return line;
     }
 
+    /**
+     * The bytes to write to the socket for this Message. A shared() Message
+     * hands out the same array every time, so do not change it.
+     *
+     * @return byte[] the encoded line, ending with CR LF
+     */
+    public byte[] getFrame() {
+        return frame != null ? frame : encode(line);
+    }
+
+    /**
+     * @return int the bytes this Message takes up in a SendQueue, near enough
+     */
+    public int size() {
+        return frame != null ? frame.length : line.length() + 2;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
     @Override
     public String toString() {
         return line;
@@ -0,0 +1,465 @@
+package chatland;
+
+import chatland.threads.IRCWorker;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * What the server is doing, in numbers. There are three ways to look:
+ *
+ * - JMX, as the chatland:type=Server MXBean (jconsole, or any JMX client).
+ *
+ * - HTTP, if -Dchatland.metrics.port is given: GET /metrics returns the
+ * Prometheus text format. It listens on -Dchatland.metrics.host, 127.0.0.1
+ * unless told otherwise.
+ *
+ * - The STATS command, for users who gave OPER the right password.
+ *
+ * The counting is done where things happen and costs next to nothing: every
+ * command is timed by its IRCWorker's Commands, connections count here as they
+ * are accepted and registered, and queued output adds to a LongAdder. The
+ * rest (users, channels, queue depths) is only counted when somebody looks:
+ * each IRCWorker takes a Census of its own shard on its own thread, and the
+ * Censuses are added up.
+ *
+ * @author ultasun
+ */
+public final class Metrics {
+
+    private static final long STARTED = System.nanoTime();
+    // how long a reader waits for the IRCWorkers to take their Census
+    private static final long CENSUS_MILLIS = 1000;
+
+    private static final AtomicLong ACCEPTED = new AtomicLong();
+    private static final LatencyHistogram HANDSHAKES = new LatencyHistogram();
+    private static final LongAdder LINES_OUT = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /**
+     * Makes the numbers of cl visible through JMX and, if asked for, HTTP.
+     *
+     * @param cl the server
+     */
+    public static void start(final ChatLand cl) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Server(cl), new ObjectName("chatland:type=Server"));
+        } catch (JMException e) {
+            Log.warn("metrics> no JMX: " + e.getLocalizedMessage());
+        }
+        if (Settings.METRICS_PORT > 0) {
+            try {
+                HttpServer http = HttpServer.create(new InetSocketAddress(
+                        Settings.METRICS_HOST, Settings.METRICS_PORT), 0);
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = render(cl, censusNow(cl))
+                            .getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.start();
+                Log.info("metrics> http://" + Settings.METRICS_HOST + ":"
+                        + Settings.METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                Log.warn("metrics> no HTTP endpoint: "
+                        + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    public static void accepted() {
+        ACCEPTED.incrementAndGet();
+    }
+
+    /**
+     * A connection finished registering.
+     *
+     * @param acceptedAt the System.nanoTime() it was accepted at
+     */
+    public static void registered(long acceptedAt) {
+        HANDSHAKES.record(System.nanoTime() - acceptedAt);
+    }
+
+    /**
+     * A Message went into an output queue.
+     */
+    public static void queued(Message m) {
+        LINES_OUT.increment();
+        BYTES_OUT.add(m.size());
+    }
+
+    public static long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - STARTED);
+    }
+
+    /**
+     * Asks every IRCWorker for a Census of its shard.
+     *
+     * @param cl the server
+     * @return the Censuses, one per IRCWorker, once all have been taken
+     */
+    public static CompletableFuture<Census[]> census(ChatLand cl) {
+        IRCWorker[] workers = cl.getIRCWorkers();
+        final Census[] shards = new Census[workers.length];
+        CompletableFuture<?>[] all = new CompletableFuture<?>[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            final int shard = i;
+            all[i] = workers[i].census().thenAccept(c -> shards[shard] = c);
+        }
+        return CompletableFuture.allOf(all).thenApply(done -> shards);
+    }
+
+    /**
+     * census(), waited for. Not for the IRCWorkers themselves: they would
+     * wait for their own Census, which they can't take while waiting.
+     *
+     * @return the Censuses, or empty ones if the IRCWorkers did not answer
+     */
+    private static Census[] censusNow(ChatLand cl) {
+        try {
+            return census(cl).get(CENSUS_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Log.warn("metrics> no census: " + e);
+        }
+        Census[] empty = new Census[cl.getIRCWorkers().length];
+        for (int i = 0; i < empty.length; i++) {
+            empty[i] = new Census();
+        }
+        return empty;
+    }
+
+    private static Census total(Census[] shards) {
+        Census total = new Census();
+        for (Census c : shards) {
+            total.add(c);
+        }
+        return total;
+    }
+
+    /**
+     * Every IRCWorker's timings of a command, added up, by command name.
+     *
+     * @param cl the server
+     * @return the timings in the order the commands were registered
+     */
+    public static Map<String, LatencyHistogram> commandTimings(ChatLand cl) {
+        Map<String, LatencyHistogram> timings = new LinkedHashMap<>();
+        for (IRCWorker w : cl.getIRCWorkers()) {
+            Commands commands = w.getCommands();
+            for (int id = 0; id < commands.size(); id++) {
+                timings.computeIfAbsent(commands.getName(id),
+                        name -> new LatencyHistogram())
+                        .add(commands.getTiming(id));
+            }
+        }
+        return timings;
+    }
+
+    public static long unknownCommands(ChatLand cl) {
+        long unknown = 0;
+        for (IRCWorker w : cl.getIRCWorkers()) {
+            unknown += w.getCommands().getUnknown();
+        }
+        return unknown;
+    }
+
+    /**
+     * @param cl the server
+     * @param shards a Census of every IRCWorker, in order
+     * @return String everything, in the Prometheus text format
+     */
+    public static String render(ChatLand cl, Census[] shards) {
+        Census c = total(shards);
+        StringBuilder out = new StringBuilder(4096);
+        metric(out, "chatland_uptime_seconds", "gauge",
+                "Seconds since the server started.", "",
+                (System.nanoTime() - STARTED) / 1e9);
+        metric(out, "chatland_accepted_total", "counter",
+                "Connections accepted.", "", ACCEPTED.get());
+        summary(out, "chatland_handshake_seconds",
+                "From accept to a registered NICK and USER.", "",
+                HANDSHAKES);
+        metric(out, "chatland_handshakes_pending", "gauge",
+                "Connections which have not registered yet.", "",
+                Admission.getPending());
+        metric(out, "chatland_handshakes_timed_out_total", "counter",
+                "Connections closed for not registering in time.", "",
+                Admission.getTimedOut());
+        metric(out, "chatland_connections_refused_total", "counter",
+                "Connections refused for too many from one address.", "",
+                Admission.getRefused());
+        metric(out, "chatland_users", "gauge", "Registered users.", "",
+                c.users);
+        metric(out, "chatland_channels", "gauge", "Channels.", "",
+                c.channels);
+        metric(out, "chatland_channel_members", "gauge",
+                "Members of all channels added up.", "", c.members);
+        metric(out, "chatland_largest_channel_members", "gauge",
+                "Members of the largest channel.",
+                "channel=\"" + escape(c.largestChannel) + "\"",
+                c.largestChannelMembers);
+        metric(out, "chatland_input_queue_messages", "gauge",
+                "Lines waiting for an IRCWorker.", "", c.inputMessages);
+        metric(out, "chatland_output_queue_messages", "gauge",
+                "Lines waiting to be sent.", "", c.outputMessages);
+        metric(out, "chatland_output_queue_bytes", "gauge",
+                "Bytes waiting to be sent.", "", c.outputBytes);
+        metric(out, "chatland_output_queue_bytes_max", "gauge",
+                "Bytes waiting for the slowest client.", "",
+                c.maxOutputBytes);
+        header(out, "chatland_worker_ready_queue", "gauge",
+                "Users with input waiting, per IRCWorker.");
+        for (int i = 0; i < shards.length; i++) {
+            sample(out, "chatland_worker_ready_queue",
+                    "worker=\"" + i + "\"", shards[i].readyQueue);
+        }
+        header(out, "chatland_worker_forwarded_queue", "gauge",
+                "Work forwarded from other shards, per IRCWorker.");
+        for (int i = 0; i < shards.length; i++) {
+            sample(out, "chatland_worker_forwarded_queue",
+                    "worker=\"" + i + "\"", shards[i].forwardedQueue);
+        }
+        header(out, "chatland_command_seconds", "summary",
+                "Time an IRCWorker spent on each command.");
+        for (Map.Entry<String, LatencyHistogram> e
+                : commandTimings(cl).entrySet()) {
+            quantiles(out, "chatland_command_seconds",
+                    "command=\"" + escape(e.getKey()) + "\",", e.getValue());
+        }
+        metric(out, "chatland_unknown_commands_total", "counter",
+                "Lines with a command the server does not know.", "",
+                unknownCommands(cl));
+        metric(out, "chatland_output_lines_total", "counter",
+                "Lines put in output queues.", "", LINES_OUT.sum());
+        metric(out, "chatland_output_bytes_total", "counter",
+                "Bytes put in output queues.", "", BYTES_OUT.sum());
+        metric(out, "chatland_sendq_evictions_total", "counter",
+                "Clients disconnected for a full SendQ.", "",
+                SendQueue.getEvictions());
+        metric(out, "chatland_sendq_drops_total", "counter",
+                "Lines of chatter dropped for a full SendQ.", "",
+                SendQueue.getDrops());
+        metric(out, "chatland_keepalive_pings_total", "counter",
+                "PINGs sent to quiet users.", "",
+                cl.getKeepalive().getPings());
+        metric(out, "chatland_keepalive_timeouts_total", "counter",
+                "Users disconnected for not answering a PING.", "",
+                cl.getKeepalive().getTimeouts());
+        metric(out, "chatland_monitored_nicks", "gauge",
+                "Nicks somebody watches with MONITOR.", "",
+                cl.getMonitor().getWatchedCount());
+        metric(out, "chatland_cluster_links", "gauge",
+                "Other nodes of the Cluster linked to.", "",
+                cl.getCluster().getLinkCount());
+        metric(out, "chatland_cluster_lines_sent_total", "counter",
+                "Lines sent to other nodes.", "",
+                cl.getCluster().getSent());
+        metric(out, "chatland_cluster_lines_received_total", "counter",
+                "Lines received from other nodes.", "",
+                cl.getCluster().getReceived());
+        metric(out, "chatland_log_dropped_total", "counter",
+                "Log records dropped because the Log could not keep up.", "",
+                Log.getDropped());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type,
+            String help) {
+        out.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels,
+            double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static void metric(StringBuilder out, String name, String type,
+            String help, String labels, double value) {
+        header(out, name, type, help);
+        sample(out, name, labels, value);
+    }
+
+    private static void summary(StringBuilder out, String name, String help,
+            String labels, LatencyHistogram h) {
+        header(out, name, "summary", help);
+        quantiles(out, name, labels, h);
+    }
+
+    /**
+     * @param labels "" or the labels to put before quantile, ending in a
+     * comma
+     */
+    private static void quantiles(StringBuilder out, String name,
+            String labels, LatencyHistogram h) {
+        for (double q : new double[]{0.5, 0.99, 0.999}) {
+            sample(out, name, labels + "quantile=\"" + q + "\"",
+                    h.percentile(q) / 1e9);
+        }
+        String plain = labels.isEmpty() ? ""
+                : labels.substring(0, labels.length() - 1);
+        sample(out, name + "_sum", plain, h.getSum() / 1e9);
+        sample(out, name + "_count", plain, h.getCount());
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    /**
+     * The JMX view. Every attribute which needs a Census asks for a new one.
+     */
+    private static final class Server implements ServerMXBean {
+
+        private final ChatLand cl;
+
+        Server(ChatLand cl) {
+            this.cl = cl;
+        }
+
+        private Census now() {
+            return total(censusNow(cl));
+        }
+
+        @Override
+        public long getUptimeSeconds() {
+            return Metrics.getUptimeSeconds();
+        }
+
+        @Override
+        public long getAccepted() {
+            return ACCEPTED.get();
+        }
+
+        @Override
+        public long getHandshakeP99Micros() {
+            return HANDSHAKES.percentile(0.99) / 1000;
+        }
+
+        @Override
+        public int getPendingHandshakes() {
+            return Admission.getPending();
+        }
+
+        @Override
+        public int getUsers() {
+            return now().users;
+        }
+
+        @Override
+        public int getChannels() {
+            return now().channels;
+        }
+
+        @Override
+        public String getLargestChannel() {
+            return now().largestChannel;
+        }
+
+        @Override
+        public int getLargestChannelMembers() {
+            return now().largestChannelMembers;
+        }
+
+        @Override
+        public long getInputQueueMessages() {
+            return now().inputMessages;
+        }
+
+        @Override
+        public long getOutputQueueMessages() {
+            return now().outputMessages;
+        }
+
+        @Override
+        public long getOutputQueueBytes() {
+            return now().outputBytes;
+        }
+
+        @Override
+        public long getOutputLines() {
+            return LINES_OUT.sum();
+        }
+
+        @Override
+        public long getSendQEvictions() {
+            return SendQueue.getEvictions();
+        }
+
+        @Override
+        public long getSendQDrops() {
+            return SendQueue.getDrops();
+        }
+
+        @Override
+        public long getPingTimeouts() {
+            return cl.getKeepalive().getTimeouts();
+        }
+
+        @Override
+        public long getLogDropped() {
+            return Log.getDropped();
+        }
+
+        @Override
+        public Map<String, Long> getCommandCounts() {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            for (Map.Entry<String, LatencyHistogram> e
+                    : commandTimings(cl).entrySet()) {
+                counts.put(e.getKey(), e.getValue().getCount());
+            }
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getCommandP99Micros() {
+            Map<String, Long> p99 = new LinkedHashMap<>();
+            for (Map.Entry<String, LatencyHistogram> e
+                    : commandTimings(cl).entrySet()) {
+                p99.put(e.getKey(), e.getValue().percentile(0.99) / 1000);
+            }
+            return p99;
+        }
+
+        @Override
+        public String getMetrics() {
+            return render(cl, censusNow(cl));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package chatland;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is watching whose nick, for MONITOR (the IRCv3 command). A client which
+ * wants to know when its friends come and go says so once, with "MONITOR +
+ * nick,nick", and is told with a 730 when one of them connects and a 731 when
+ * one of them quits, instead of asking with WHO or ISON every minute.
+ *
+ * The watchers are kept by the nick they watch (folded, see
+ * ChatLand.foldHandle()), so telling them costs the same however many users
+ * watch other nicks. Each IRCHandler also keeps the list of nicks it watches,
+ * for MONITOR L and for cleaning up after it (see IRCHandler.getMonitored()).
+ *
+ * Users come and go on every IRCWorker, and on the registering threads, so
+ * the watchers of a nick are a concurrent set, changed inside compute() so a
+ * set is never emptied and thrown away while somebody is adding to it.
+ *
+ * @author ultasun
+ */
+public class Monitor {
+
+    private final String server;
+    // folded nick to the users watching it
+    private final ConcurrentHashMap<String, Set<IRCHandler>> watchers;
+
+    public Monitor(String server) {
+        this.server = server;
+        watchers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts telling h about nick. Only on h's home IRCWorker.
+     *
+     * @param h the watcher
+     * @param nick the nick to watch, as h typed it
+     * @return boolean false if h watches Settings.MONITOR_MAX nicks already
+     */
+    public boolean watch(final IRCHandler h, String nick) {
+        String key = ChatLand.foldHandle(nick);
+        if (h.getMonitored().containsKey(key)) {
+            return true;
+        }
+        if (h.getMonitored().size() >= Settings.MONITOR_MAX) {
+            return false;
+        }
+        h.getMonitored().put(key, nick);
+        watchers.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(h);
+            return set;
+        });
+        return true;
+    }
+
+    /**
+     * Stops telling h about nick. Only on h's home IRCWorker.
+     *
+     * @param h the watcher
+     * @param nick the nick, in any case
+     */
+    public void unwatch(IRCHandler h, String nick) {
+        String key = ChatLand.foldHandle(nick);
+        if (h.getMonitored().remove(key) != null) {
+            forget(key, h);
+        }
+    }
+
+    /**
+     * Stops telling h about anybody, for MONITOR C and when h quits. Only on
+     * h's home IRCWorker.
+     *
+     * @param h the watcher
+     */
+    public void clear(IRCHandler h) {
+        for (String key : h.getMonitored().keySet()) {
+            forget(key, h);
+        }
+        h.getMonitored().clear();
+    }
+
+    private void forget(String key, final IRCHandler h) {
+        watchers.computeIfPresent(key, (k, set) -> {
+            set.remove(h);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Tells everybody watching h's handle that h is here.
+     *
+     * @param h a user who just registered, or just took a new handle
+     */
+    public void online(IRCHandler h) {
+        Set<IRCHandler> set = watchers.get(ChatLand.foldHandle(h.getHandle()));
+        if (set == null) {
+            return;
+        }
+        for (IRCHandler w : set) {
+            w.insertOutputQueue(new Message(w, ":" + server + " 730 "
+                    + w.getHandle() + " :" + h.getHostLine()));
+        }
+    }
+
+    /**
+     * Tells everybody watching handle that nobody has it any more.
+     *
+     * @param handle the handle of a user who quit or took another one
+     */
+    public void offline(String handle) {
+        Set<IRCHandler> set = watchers.get(ChatLand.foldHandle(handle));
+        if (set == null) {
+            return;
+        }
+        for (IRCHandler w : set) {
+            w.insertOutputQueue(new Message(w, ":" + server + " 731 "
+                    + w.getHandle() + " :" + handle));
+        }
+    }
+
+    /**
+     * @return int how many different nicks are being watched
+     */
+    public int getWatchedCount() {
+        return watchers.size();
+    }
+}
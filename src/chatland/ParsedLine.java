@@ -0,0 +1,162 @@
+package chatland;
+
+/**
+ * Splits a line from a client into the parts RFC 1459 (section 2.3.1) gives
+ * it:
+ *
+ * [':' prefix SPACE] command {SPACE middle} [SPACE ':' trailing]
+ *
+ * parse() walks the line once and only remembers where each part starts and
+ * ends. Nothing is copied until a part is asked for as a String, and the
+ * command is matched in place (see Commands), so one ParsedLine can be reused
+ * for every line an IRCWorker handles. A line which makes no sense gives a
+ * ParsedLine with fewer parameters than the command wants, it never throws.
+ *
+ * @author ultasun
+ */
+public class ParsedLine {
+
+    // RFC 1459 allows at most 15 parameters, the 15th takes the rest
+    public static final int MAX_PARAMS = 15;
+
+    private final int[] paramStart, paramEnd;
+    private String line;
+    private int prefixStart, prefixEnd, commandStart, commandEnd;
+    private int paramCount;
+
+    public ParsedLine() {
+        paramStart = new int[MAX_PARAMS];
+        paramEnd = new int[MAX_PARAMS];
+    }
+
+    /**
+     * Parses a line, forgetting the previous one.
+     *
+     * @param line a line from a client, without its CR LF
+     * @return boolean false if there is no command in the line at all
+     */
+    public boolean parse(String line) {
+        this.line = line;
+        prefixStart = prefixEnd = commandStart = commandEnd = 0;
+        paramCount = 0;
+
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\r'
+                || line.charAt(end - 1) == '\n')) {
+            end--;
+        }
+        int i = skipSpaces(0, end);
+        if (i < end && line.charAt(i) == ':') {
+            prefixStart = i + 1;
+            prefixEnd = wordEnd(prefixStart, end);
+            i = skipSpaces(prefixEnd, end);
+        }
+        commandStart = i;
+        commandEnd = wordEnd(i, end);
+        if (commandStart == commandEnd) {
+            return false;
+        }
+
+        i = skipSpaces(commandEnd, end);
+        while (i < end && paramCount < MAX_PARAMS) {
+            if (line.charAt(i) == ':' || paramCount == MAX_PARAMS - 1) {
+                if (line.charAt(i) == ':') {
+                    i++;
+                }
+                paramStart[paramCount] = i;
+                paramEnd[paramCount] = end;
+                paramCount++;
+                break;
+            }
+            paramStart[paramCount] = i;
+            paramEnd[paramCount] = wordEnd(i, end);
+            i = skipSpaces(paramEnd[paramCount], end);
+            paramCount++;
+        }
+        return true;
+    }
+
+    private int skipSpaces(int i, int end) {
+        while (i < end && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private int wordEnd(int i, int end) {
+        while (i < end && line.charAt(i) != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public boolean hasPrefix() {
+        return prefixEnd > prefixStart;
+    }
+
+    public String getPrefix() {
+        return line.substring(prefixStart, prefixEnd);
+    }
+
+    /**
+     * @param name a command name in upper case
+     * @return boolean true if the line's command is name, in any case
+     */
+    public boolean commandIs(String name) {
+        return commandEnd - commandStart == name.length()
+                && line.regionMatches(true, commandStart, name, 0,
+                        name.length());
+    }
+
+    /**
+     * @return int the same value Commands.hash() gives the command's name
+     */
+    public int commandHash() {
+        return Commands.hash(line, commandStart, commandEnd);
+    }
+
+    /**
+     * @return String the command, in upper case
+     */
+    public String getCommand() {
+        return line.substring(commandStart, commandEnd).toUpperCase();
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /**
+     * @param i which parameter, counting from 0
+     * @return String the parameter, without the ':' of a trailing one
+     */
+    public String getParam(int i) {
+        return line.substring(paramStart[i], paramEnd[i]);
+    }
+
+    /**
+     * @param i which parameter, counting from 0
+     * @param otherwise what to give back if there are not that many
+     * @return String the parameter, or otherwise
+     */
+    public String getParam(int i, String otherwise) {
+        return i < paramCount ? getParam(i) : otherwise;
+    }
+
+    /**
+     * @param i which parameter, counting from 0
+     * @return char the first character of the parameter, or 0 if it is empty
+     */
+    public char firstCharOfParam(int i) {
+        return paramEnd[i] > paramStart[i] ? line.charAt(paramStart[i]) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+}
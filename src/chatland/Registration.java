@@ -0,0 +1,117 @@
+package chatland;
+
+import java.net.InetAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects the NICK and USER lines a client sends right after connecting.
+ * Both transports feed lines in here until isComplete() says we have enough to
+ * build an IRCHandler.
+ *
+ * A Registration also keeps the time: if the client has not registered within
+ * Settings.REGISTER_TIMEOUT_SECONDS, the expire Runnable given to the
+ * constructor is run (on the Admission timer thread) to close the connection.
+ * The transport says how the handshake ended with complete() or abandon(),
+ * and only one of those and the timeout wins.
+ *
+ * @author ultasun
+ */
+public class Registration {
+
+    private String handle, username, realname;
+    private final InetAddress address;
+    private final AtomicBoolean settled;
+    private final ScheduledFuture<?> timeout;
+
+    /**
+     * @param address where the connection comes from, already let in by
+     * Admission.admit()
+     * @param expire closes the connection if it does not register in time
+     */
+    public Registration(InetAddress address, final Runnable expire) {
+        this.address = address;
+        settled = new AtomicBoolean();
+        timeout = Admission.expireLater(() -> {
+            if (settle()) {
+                Admission.timedOut();
+                Admission.left(this.address);
+                Log.info(this.address + " did not register in time");
+                expire.run();
+            }
+        });
+    }
+
+    /**
+     * Looks at one line from a connecting client.
+     *
+     * @param line a line received before registration finished
+     * @return boolean true once NICK and USER have both been seen
+     */
+    public boolean offer(String line) {
+        if (line.contains("NICK ")) {
+            handle = line.substring(5);
+        } else if (line.contains("USER ")) {
+            int space = line.indexOf(" ", 5);
+            if (space > 0) {
+                username = line.substring(5, space);
+                realname = line.substring(line.indexOf(":") + 1);
+            }
+        }
+        return isComplete();
+    }
+
+    /**
+     * The client has registered. From now on its IRCHandler lets it out of
+     * the Admission when it quits.
+     *
+     * @return boolean false if the timeout came first, and the connection is
+     * being closed
+     */
+    public boolean complete() {
+        if (!settle()) {
+            return false;
+        }
+        timeout.cancel(false);
+        return true;
+    }
+
+    /**
+     * The client went away, or is being sent away, before registering.
+     */
+    public void abandon() {
+        if (settle()) {
+            timeout.cancel(false);
+            Admission.left(address);
+        }
+    }
+
+    private boolean settle() {
+        if (settled.compareAndSet(false, true)) {
+            Admission.settled();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isComplete() {
+        return handle != null && username != null && realname != null;
+    }
+
+    public String getHandle() {
+        return handle;
+    }
+
+    public String getUserName() {
+        return username;
+    }
+
+    public String getRealName() {
+        return realname;
+    }
+
+    @Override
+    public String toString() {
+        return handle + " " + username + " " + realname;
+    }
+}
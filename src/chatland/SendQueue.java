@@ -0,0 +1,250 @@
+package chatland;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An IRCHandler's output queue, bounded by the bytes it holds rather than the
+ * number of Messages (the "SendQ" of other IRC servers). A client which stops
+ * reading can only make its own queue grow to Settings.SENDQ_BYTES, after that
+ * the Policy decides what happens:
+ *
+ * - DISCONNECT: the queue is emptied and offer() says OVERFLOWED, once. The
+ * IRCHandler then quits the client with "SendQ exceeded", like other servers.
+ *
+ * - DROP: droppable Messages (channel chatter, see Message.chatter()) are
+ * thrown away while the queue is full. Anything else is still queued, up to
+ * twice the limit, and past that the queue overflows as with DISCONNECT.
+ *
+ * - BLOCK: the thread offering waits, at most Settings.SENDQ_BLOCK_MILLIS, for
+ * the client to catch up, then the queue overflows as with DISCONNECT. The
+ * waiting thread is an IRCWorker, so this slows down every user of that
+ * IRCWorker while one client is slow.
+ *
+ * It uses a ReentrantLock rather than synchronized, so a virtual thread
+ * waiting on it does not pin its carrier.
+ *
+ * @author ultasun
+ */
+public class SendQueue {
+
+    public enum Policy {
+        DISCONNECT, DROP, BLOCK
+    }
+
+    public enum Offer {
+        QUEUED, DROPPED, OVERFLOWED
+    }
+
+    // over every SendQueue, for watching the server
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+    private static final AtomicLong DROPS = new AtomicLong();
+
+    private final ArrayDeque<Message> queue;
+    private final ReentrantLock lock;
+    private final Condition notEmpty, notFull;
+    private final long limit;
+    private final Policy policy;
+    private long bytes, dropped;
+    private boolean overflowed;
+
+    public SendQueue() {
+        this(Settings.SENDQ_BYTES, Settings.SENDQ_POLICY);
+    }
+
+    public SendQueue(long limit, Policy policy) {
+        this.limit = limit;
+        this.policy = policy;
+        queue = new ArrayDeque<>();
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        bytes = 0;
+        dropped = 0;
+        overflowed = false;
+    }
+
+    /**
+     * @param m the Message to queue
+     * @return Offer QUEUED, DROPPED, or OVERFLOWED the first time the queue
+     * overflows (and DROPPED for everything after that)
+     */
+    public Offer offer(Message m) {
+        long size = m.size();
+        lock.lock();
+        try {
+            if (overflowed) {
+                return Offer.DROPPED;
+            }
+            if (bytes + size > limit && !queue.isEmpty()) {
+                switch (policy) {
+                    case DROP:
+                        if (m.isDroppable()) {
+                            dropped++;
+                            DROPS.incrementAndGet();
+                            return Offer.DROPPED;
+                        }
+                        if (bytes + size > 2 * limit) {
+                            return overflow();
+                        }
+                        break;
+                    case BLOCK:
+                        if (!awaitRoom(size)) {
+                            return overflow();
+                        }
+                        break;
+                    default:
+                        return overflow();
+                }
+            }
+            queue.addLast(m);
+            bytes += size;
+            notEmpty.signal();
+            return Offer.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitRoom(long size) {
+        long left = TimeUnit.MILLISECONDS.toNanos(Settings.SENDQ_BLOCK_MILLIS);
+        try {
+            while (bytes + size > limit && !queue.isEmpty()) {
+                if (left <= 0) {
+                    return false;
+                }
+                left = notFull.awaitNanos(left);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Offer overflow() {
+        overflowed = true;
+        queue.clear();
+        bytes = 0;
+        EVICTIONS.incrementAndGet();
+        return Offer.OVERFLOWED;
+    }
+
+    private Message removed(Message m) {
+        if (m != null) {
+            bytes -= m.size();
+            notFull.signal();
+        }
+        return m;
+    }
+
+    /**
+     * @return the next Message, or null if the queue is empty
+     */
+    public Message poll() {
+        lock.lock();
+        try {
+            return removed(queue.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout nanoseconds to wait for a Message
+     * @return the next Message, or null if none arrived in time
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public Message poll(long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (timeout <= 0) {
+                    return null;
+                }
+                timeout = notEmpty.awaitNanos(timeout);
+            }
+            return removed(queue.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next Message, waiting for one if the queue is empty
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public Message take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                notEmpty.await();
+            }
+            return removed(queue.pollFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int how many Messages are waiting
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return long how many bytes are waiting
+     */
+    public long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return long how many droppable Messages this queue has thrown away
+     */
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return long how many clients were disconnected for a full SendQ
+     */
+    public static long getEvictions() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * @return long how many droppable Messages were thrown away, overall
+     */
+    public static long getDrops() {
+        return DROPS.get();
+    }
+}
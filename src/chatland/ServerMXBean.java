@@ -0,0 +1,57 @@
+package chatland;
+
+import java.util.Map;
+
+/**
+ * What the server shows through JMX, as chatland:type=Server (see Metrics).
+ * The same numbers are in the text of getMetrics(), in the Prometheus text
+ * format, and at the HTTP endpoint if there is one.
+ *
+ * @author ultasun
+ */
+public interface ServerMXBean {
+
+    long getUptimeSeconds();
+
+    long getAccepted();
+
+    long getHandshakeP99Micros();
+
+    int getPendingHandshakes();
+
+    int getUsers();
+
+    int getChannels();
+
+    String getLargestChannel();
+
+    int getLargestChannelMembers();
+
+    long getInputQueueMessages();
+
+    long getOutputQueueMessages();
+
+    long getOutputQueueBytes();
+
+    long getOutputLines();
+
+    long getSendQEvictions();
+
+    long getSendQDrops();
+
+    long getPingTimeouts();
+
+    long getLogDropped();
+
+    /**
+     * @return how many times each command ran
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return each command's 99th percentile, in microseconds
+     */
+    Map<String, Long> getCommandP99Micros();
+
+    String getMetrics();
+}
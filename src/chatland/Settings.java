@@ -0,0 +1,272 @@
+package chatland;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Startup switches for the server. Everything is read from system properties,
+ * so a switch can be given on the command line (for example
+ * -Dchatland.transport=nio) or in the run.jvmargs of the NetBeans project.
+ *
+ * - chatland.port: the TCP port to listen on (7776)
+ *
+ * - chatland.transport: "threads" runs a ClientInput and a ClientOutput thread
+ * for every connection (the original design), "virtual" does the same with
+ * virtual threads (Java 21 and later), "nio" runs every connection on a small
+ * fixed set of Selector event loops.
+ *
+ * - chatland.nio.loops: how many event loop threads the "nio" transport uses.
+ *
+ * - chatland.workers: how many IRCWorker shards process commands (1). Users
+ * and channels are spread over them, see IRCWorker.
+ *
+ * - chatland.output.batchBytes: output waiting for a client is written with
+ * one write of at most this many bytes (16384), instead of one write per line.
+ *
+ * - chatland.output.lingerMillis: how long ClientOutput waits for more output
+ * to put in the same write before sending what it has (0, don't wait). This
+ * bounds the latency batching may add. The "nio" transport does not wait, it
+ * writes whatever was queued since the loop last woke up.
+ *
+ * - chatland.sendq.bytes: how many bytes of output may wait for one client
+ * (1048576), see SendQueue.
+ *
+ * - chatland.sendq.policy: what to do with a client whose SendQ is full,
+ * "disconnect" (the default), "drop" or "block".
+ *
+ * - chatland.sendq.blockMillis: how long the "block" policy waits (100).
+ *
+ * - chatland.log.level: the least important Log records written, one of
+ * error, warn, info (the default), debug, or trace. Only trace shows every
+ * line to and from the clients.
+ *
+ * - chatland.log.file: where the Log goes (standard output if not given).
+ *
+ * - chatland.dns.resolve: look up the hostnames of clients (true). If false
+ * the numeric address is shown instead.
+ *
+ * - chatland.dns.ttlSeconds: how long a looked up hostname is remembered
+ * (3600), see HostCache.
+ *
+ * - chatland.metrics.port: serve the Metrics over HTTP on this port, at
+ * /metrics (0, don't).
+ *
+ * - chatland.metrics.host: the address the Metrics are served on (127.0.0.1)
+ *
+ * - chatland.ping.seconds: how long a user may be quiet before the Keepalive
+ * sends a PING (90).
+ *
+ * - chatland.ping.timeoutSeconds: how long after that PING the user has to
+ * answer before being disconnected (60).
+ *
+ * - chatland.register.timeoutSeconds: how long a new connection has to send
+ * NICK and USER before it is closed (30).
+ *
+ * - chatland.register.maxPending: how many connections can be registering at
+ * the same time before the server stops accepting more for a while (1024).
+ *
+ * - chatland.limit.perAddress: how many connections one address can have open
+ * (64, 0 for no limit).
+ *
+ * - chatland.flood.rate: how many tokens a second a client gets back for
+ * sending lines, see FloodControl (10, 0 turns flood control off).
+ *
+ * - chatland.flood.burst: how many tokens a client can save up (20).
+ *
+ * - chatland.flood.strikes: after how many lines in a row that had to wait a
+ * client is disconnected for flooding (50).
+ *
+ * - chatland.journal.dir: where the Journal keeps the channels and their
+ * topics across restarts (none, so they are forgotten).
+ *
+ * - chatland.journal.bytes: the size of the memory mapped journal file
+ * (4194304).
+ *
+ * - chatland.journal.flushMillis: how often the Journal writes the changes
+ * that piled up (100).
+ *
+ * - chatland.journal.compactSeconds: how often the Journal writes a new
+ * snapshot and starts the journal over (300).
+ *
+ * - chatland.history.bytes: how much of what was said each channel remembers
+ * for CHATHISTORY (16384, 0 for none).
+ *
+ * - chatland.history.maxLines: the most lines one CHATHISTORY sends (100).
+ *
+ * - chatland.cluster.node: this server's name in a Cluster of ChatLands
+ * (none, so the server is on its own). Every node needs a different one.
+ *
+ * - chatland.cluster.port: the TCP port other nodes link to (7777).
+ *
+ * - chatland.cluster.host: the address that port is opened on (127.0.0.1).
+ * Nodes on other machines need an address they can reach, and then the port
+ * should be firewalled from everybody else.
+ *
+ * - chatland.cluster.secret: the password every node of the Cluster says when
+ * it links (none, and without one the Cluster does not start). A node which
+ * says anything else is not linked with.
+ *
+ * - chatland.cluster.peers: the nodes to link to, as host:port, separated by
+ * commas (none). Each pair of nodes only needs one of them to list the other.
+ *
+ * - chatland.cluster.queueLines: how many lines may wait to be sent to another
+ * node before the link is given up on (100000).
+ *
+ * - chatland.monitor.max: how many nicks one client can watch with MONITOR
+ * (100).
+ *
+ * - chatland.oper.password: the password OPER wants before STATS can be used
+ * (none, so nobody can be an operator).
+ *
+ * - chatland.socket.tcpNoDelay: turns Nagle's algorithm off (true), since we
+ * batch our writes ourselves.
+ *
+ * - chatland.socket.sendBuffer: the socket send buffer size in bytes (0, let
+ * the operating system decide).
+ *
+ * @author ultasun
+ */
+public final class Settings {
+
+    public static final int PORT = Integer.getInteger("chatland.port", 7776);
+
+    public static final String TRANSPORT
+            = System.getProperty("chatland.transport", "threads");
+
+    public static final int NIO_LOOPS = Math.max(1,
+            Integer.getInteger("chatland.nio.loops",
+                    Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    public static final int WORKERS = Math.max(1,
+            Integer.getInteger("chatland.workers", 1));
+
+    public static final int OUTPUT_BATCH_BYTES = Math.max(512,
+            Integer.getInteger("chatland.output.batchBytes", 16384));
+
+    public static final long OUTPUT_LINGER_MILLIS = Math.max(0,
+            Long.getLong("chatland.output.lingerMillis", 0));
+
+    public static final long SENDQ_BYTES = Math.max(512,
+            Long.getLong("chatland.sendq.bytes", 1024 * 1024));
+
+    public static final SendQueue.Policy SENDQ_POLICY
+            = SendQueue.Policy.valueOf(System.getProperty(
+                    "chatland.sendq.policy", "disconnect").toUpperCase());
+
+    public static final long SENDQ_BLOCK_MILLIS = Math.max(0,
+            Long.getLong("chatland.sendq.blockMillis", 100));
+
+    public static final Log.Level LOG_LEVEL = Log.Level.valueOf(
+            System.getProperty("chatland.log.level", "info").toUpperCase());
+
+    public static final String LOG_FILE
+            = System.getProperty("chatland.log.file", "");
+
+    public static final boolean DNS_RESOLVE = Boolean.parseBoolean(
+            System.getProperty("chatland.dns.resolve", "true"));
+
+    public static final long DNS_TTL_SECONDS = Math.max(1,
+            Long.getLong("chatland.dns.ttlSeconds", 3600));
+
+    public static final int METRICS_PORT = Math.max(0,
+            Integer.getInteger("chatland.metrics.port", 0));
+
+    public static final String METRICS_HOST
+            = System.getProperty("chatland.metrics.host", "127.0.0.1");
+
+    public static final long PING_SECONDS = Math.max(1,
+            Long.getLong("chatland.ping.seconds", 90));
+
+    public static final long PING_TIMEOUT_SECONDS = Math.max(1,
+            Long.getLong("chatland.ping.timeoutSeconds", 60));
+
+    public static final long REGISTER_TIMEOUT_SECONDS = Math.max(1,
+            Long.getLong("chatland.register.timeoutSeconds", 30));
+
+    public static final int REGISTER_MAX_PENDING = Math.max(1,
+            Integer.getInteger("chatland.register.maxPending", 1024));
+
+    public static final int CONNECTIONS_PER_ADDRESS = Math.max(0,
+            Integer.getInteger("chatland.limit.perAddress", 64));
+
+    public static final int FLOOD_RATE = Math.max(0,
+            Integer.getInteger("chatland.flood.rate", 10));
+
+    public static final int FLOOD_BURST = Math.max(1,
+            Integer.getInteger("chatland.flood.burst", 20));
+
+    public static final int FLOOD_STRIKES = Math.max(1,
+            Integer.getInteger("chatland.flood.strikes", 50));
+
+    public static final String JOURNAL_DIR
+            = System.getProperty("chatland.journal.dir", "");
+
+    public static final int JOURNAL_BYTES = Math.max(4096,
+            Integer.getInteger("chatland.journal.bytes", 4 << 20));
+
+    public static final long JOURNAL_FLUSH_MILLIS = Math.max(1,
+            Long.getLong("chatland.journal.flushMillis", 100));
+
+    public static final long JOURNAL_COMPACT_SECONDS = Math.max(1,
+            Long.getLong("chatland.journal.compactSeconds", 300));
+
+    public static final int HISTORY_BYTES = Math.max(0,
+            Integer.getInteger("chatland.history.bytes", 16384));
+
+    public static final int HISTORY_MAX_LINES = Math.max(1,
+            Integer.getInteger("chatland.history.maxLines", 100));
+
+    public static final String CLUSTER_NODE
+            = System.getProperty("chatland.cluster.node", "");
+
+    public static final int CLUSTER_PORT
+            = Integer.getInteger("chatland.cluster.port", 7777);
+
+    public static final String CLUSTER_HOST
+            = System.getProperty("chatland.cluster.host", "127.0.0.1");
+
+    public static final String CLUSTER_SECRET
+            = System.getProperty("chatland.cluster.secret", "");
+
+    public static final String CLUSTER_PEERS
+            = System.getProperty("chatland.cluster.peers", "");
+
+    public static final int CLUSTER_QUEUE_LINES = Math.max(1,
+            Integer.getInteger("chatland.cluster.queueLines", 100000));
+
+    public static final int MONITOR_MAX = Math.max(0,
+            Integer.getInteger("chatland.monitor.max", 100));
+
+    public static final String OPER_PASSWORD
+            = System.getProperty("chatland.oper.password", "");
+
+    public static final boolean TCP_NO_DELAY = Boolean.parseBoolean(
+            System.getProperty("chatland.socket.tcpNoDelay", "true"));
+
+    public static final int SEND_BUFFER = Math.max(0,
+            Integer.getInteger("chatland.socket.sendBuffer", 0));
+
+    private Settings() {
+    }
+
+    /**
+     * Applies the chatland.socket switches to a newly accepted connection.
+     *
+     * @param s the accepted connection
+     * @throws SocketException if the socket refuses an option
+     */
+    public static void configureSocket(Socket s) throws SocketException {
+        s.setTcpNoDelay(TCP_NO_DELAY);
+        if (SEND_BUFFER > 0) {
+            s.setSendBufferSize(SEND_BUFFER);
+        }
+    }
+
+    public static boolean useNIO() {
+        return TRANSPORT.equalsIgnoreCase("nio");
+    }
+
+    public static boolean useVirtualThreads() {
+        return TRANSPORT.equalsIgnoreCase("virtual");
+    }
+}
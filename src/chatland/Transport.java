@@ -0,0 +1,60 @@
+package chatland;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A Transport moves lines between a remote IRC client and an IRCHandler's
+ * queues. Incoming lines are handed to IRCHandler.insertInputQueue(), and
+ * outgoing Messages are taken from the IRCHandler's output queue.
+ *
+ * There are two of them: ThreadedTransport runs a ClientInput and a
+ * ClientOutput thread per connection, NIOTransport shares a SelectorLoop with
+ * many other connections. A RemoteTransport stands in for a client connected
+ * to another node of the Cluster.
+ *
+ * @author ultasun
+ */
+public interface Transport {
+
+    /**
+     * Called once by the IRCHandler constructor, before anything is queued.
+     *
+     * @param h the IRCHandler this Transport carries lines for
+     * @throws IOException if the socket can not be used
+     */
+    void attach(IRCHandler h) throws IOException;
+
+    /**
+     * Begin moving lines. Called once the IRCHandler has been registered.
+     */
+    void start();
+
+    /**
+     * Called after a Message has been put in the IRCHandler's output queue.
+     */
+    void outputReady();
+
+    /**
+     * Disconnect the client. Calling this more than once is harmless.
+     */
+    void close();
+
+    Socket getSocket();
+
+    /**
+     * @return boolean true if the client is on another node of the Cluster,
+     * and its lines come over a Link instead of its own socket
+     */
+    default boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * @return String the client's host if the Transport knows it already,
+     * null to look it up from the socket's address
+     */
+    default String getHost() {
+        return null;
+    }
+}
@@ -0,0 +1,352 @@
+package chatland.cluster;
+
+import chatland.Channel;
+import chatland.ChatLand;
+import chatland.IRCHandler;
+import chatland.Log;
+import chatland.Message;
+import chatland.Settings;
+import chatland.threads.IRCWorker;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Several ChatLand servers, linked over TCP so their users can talk to each
+ * other as if they were on one server. Each server is a node with its own
+ * name (Settings.CLUSTER_NODE), and every node links to every other one (see
+ * Link). A node listens on Settings.CLUSTER_HOST and Settings.CLUSTER_PORT and
+ * keeps trying to link to the nodes in Settings.CLUSTER_PEERS.
+ *
+ * A node can do anything to another node's users, so the nodes only link
+ * with each other if they know the same Settings.CLUSTER_SECRET, and the port
+ * is only opened on the loopback address unless told otherwise.
+ *
+ * Every node owns its local clients and runs their commands. What they do
+ * that the other nodes need to know (registering, JOIN, PART, NICK, QUIT and
+ * TOPIC) is told to every node, so each of them knows every nick and every
+ * channel's members, and NAMES, WHO and nick collisions work anywhere. The
+ * chatter is not: a PRIVMSG to a channel is sent once to each node which has
+ * users in the channel, and that node hands it to them, and a PRIVMSG to a
+ * user only goes to the user's node. So the work of delivering a busy
+ * channel's lines is split between the nodes its members are on.
+ *
+ * When a Link comes up, each node tells the other about all of its users and
+ * the channels they are in, and the topics it knows. If a nick is taken on
+ * both, the user being introduced is KILLed. When a Link goes down, the users
+ * of the other node QUIT.
+ *
+ * With no node name the Cluster does nothing, and the server is on its own.
+ *
+ * @author ultasun
+ */
+public class Cluster {
+
+    private final ChatLand cl;
+    private final String node;
+    // the other nodes, by name
+    private final ConcurrentHashMap<String, Link> links;
+    private final AtomicLong sent, received;
+
+    public Cluster(ChatLand cl, String node) {
+        this.cl = cl;
+        this.node = node;
+        links = new ConcurrentHashMap<>();
+        sent = new AtomicLong();
+        received = new AtomicLong();
+    }
+
+    /**
+     * Starts listening for other nodes, and linking to the peers.
+     */
+    public void start() {
+        if (!isOn()) {
+            return;
+        }
+        if (Settings.CLUSTER_SECRET.isEmpty()) {
+            Log.error("cluster> chatland.cluster.secret is not set, so node "
+                    + node + " stays on its own");
+            return;
+        }
+        final ServerSocket listener;
+        try {
+            listener = new ServerSocket(Settings.CLUSTER_PORT, 50,
+                    InetAddress.getByName(Settings.CLUSTER_HOST));
+        } catch (IOException e) {
+            Log.error("cluster> can't listen on " + Settings.CLUSTER_HOST
+                    + ":" + Settings.CLUSTER_PORT + ": "
+                    + e.getLocalizedMessage());
+            return;
+        }
+        Log.info("cluster> node " + node + " listening on "
+                + Settings.CLUSTER_HOST + ":" + Settings.CLUSTER_PORT);
+        daemon(() -> listen(listener), "Cluster-listen");
+        for (String peer : Settings.CLUSTER_PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            final int port;
+            try {
+                port = Integer.parseInt(peer.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                Log.error("cluster> peer " + peer + " is not host:port");
+                continue;
+            }
+            if (colon <= 0 || port <= 0 || port > 65535) {
+                Log.error("cluster> peer " + peer + " is not host:port");
+                continue;
+            }
+            final String host = peer.substring(0, colon);
+            daemon(() -> keepLinked(host, port), "Cluster-peer-" + peer);
+        }
+    }
+
+    /**
+     * @return boolean true if this server is a node of a Cluster
+     */
+    public boolean isOn() {
+        return !node.isEmpty();
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public ChatLand getChatLand() {
+        return cl;
+    }
+
+    /**
+     * Tells every other node something one of our own users did. Nothing is
+     * told about the other nodes' users, their own node does that.
+     *
+     * @param h the user
+     * @param command the command, as the user would send it
+     */
+    public void tell(IRCHandler h, String command) {
+        if (h.isRemote() || links.isEmpty()) {
+            return;
+        }
+        String line = h.getId() + " " + command;
+        for (Link l : links.values()) {
+            l.send(line);
+        }
+    }
+
+    /**
+     * Tells every other node about a newly registered user of ours.
+     *
+     * @param h the user
+     */
+    public void introduce(IRCHandler h) {
+        tell(h, introduction(h));
+    }
+
+    /**
+     * Sends a PRIVMSG from one of our users to a user on another node.
+     *
+     * @param from the sender
+     * @param to the recipient, on another node
+     * @param command the PRIVMSG
+     */
+    public void sendTo(IRCHandler from, IRCHandler to, String command) {
+        if (!from.isRemote()) {
+            linkOf(to).send(from, command);
+        }
+    }
+
+    /**
+     * A user of another node could not take the nick it wanted here, because
+     * somebody has it. Its node is told to KILL it.
+     *
+     * @param h the user of another node
+     */
+    public void collided(IRCHandler h) {
+        if (h.isRemote()) {
+            RemoteTransport t = (RemoteTransport) h.getTransport();
+            t.getLink().send("0 KILL " + t.getOrigin()
+                    + " :Nick collision with " + node);
+        }
+    }
+
+    /**
+     * @param h a user of another node
+     * @return Link the Link to the user's node
+     */
+    public static Link linkOf(IRCHandler h) {
+        return ((RemoteTransport) h.getTransport()).getLink();
+    }
+
+    /**
+     * @return int how many nodes we are linked to
+     */
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    /**
+     * @return long how many lines were sent to other nodes
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return long how many lines came from other nodes
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    void sent(int lines) {
+        sent.addAndGet(lines);
+    }
+
+    void received() {
+        received.incrementAndGet();
+    }
+
+    /**
+     * A Link has said HELLO. If we are linked to its node already it is not
+     * wanted, otherwise the other node is told everything it should know.
+     *
+     * @return boolean false if the Link should be closed
+     */
+    boolean linked(Link l) {
+        if (links.putIfAbsent(l.getPeer(), l) != null) {
+            Log.info("cluster> linked to " + l.getPeer() + " already");
+            return false;
+        }
+        Log.info("cluster> linked to " + l.getPeer());
+        burst(l);
+        return true;
+    }
+
+    /**
+     * @return boolean true if l was the Link to its node
+     */
+    boolean unlinked(Link l) {
+        String peer = l.getPeer();
+        return peer != null && links.remove(peer, l);
+    }
+
+    /**
+     * Another node says one of our users has to go.
+     */
+    void kill(String id, String reason) {
+        for (IRCHandler h : cl.getRoster()) {
+            if (!h.isRemote() && String.valueOf(h.getId()).equals(id)) {
+                Log.info(h.getHandle() + " killed: " + reason);
+                h.insertInputQueue(new Message(h, "QUIT :Killed ("
+                        + reason + ")"));
+            }
+        }
+    }
+
+    /**
+     * Another node knows a channel's topic. We keep ours if we have one.
+     */
+    void burstTopic(final String channel, final String topic) {
+        cl.getChannelOwner(channel).post(() -> {
+            if (!cl.channelExists(channel)) {
+                cl.createChannel(channel);
+            }
+            if (cl.getChannelTopic(channel).isEmpty()) {
+                cl.setChannelTopic(channel, topic);
+            }
+        });
+    }
+
+    /**
+     * Tells a newly linked node about our users and the channels they are
+     * in, each user on its home IRCWorker, so nothing the user does at the
+     * same time is missed or comes first. Then the topics, each channel on
+     * its owner.
+     */
+    private void burst(final Link l) {
+        for (final IRCHandler h : cl.getRoster()) {
+            if (h.isRemote()) {
+                continue;
+            }
+            h.getIRCWorkerToNotify().post(() -> {
+                if (h.isGone()) {
+                    return;
+                }
+                l.send(h, introduction(h));
+                for (String channel : h.getChannels()) {
+                    l.send(h, "JOIN " + channel);
+                }
+            });
+        }
+        for (final IRCWorker w : cl.getIRCWorkers()) {
+            w.post(() -> {
+                for (Channel c : w.getChannels().values()) {
+                    if (!c.getTopic().isEmpty()) {
+                        l.send("0 TOPIC " + c.getName() + " :"
+                                + c.getTopic());
+                    }
+                }
+            });
+        }
+    }
+
+    private static String introduction(IRCHandler h) {
+        return "USER " + h.getHandle() + " " + h.getUserName() + " "
+                + h.getHost() + " :" + h.getRealName();
+    }
+
+    private void listen(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket s = listener.accept();
+                daemon(new Link(this, s, false), "Link-reader");
+            } catch (IOException e) {
+                Log.error("cluster> " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Links to a peer, and links again whenever the Link goes down, unless
+     * the peer linked to us in the meantime.
+     */
+    private void keepLinked(String host, int port) {
+        String known = null;
+        while (true) {
+            if (known == null || !links.containsKey(known)) {
+                try {
+                    Socket s = new Socket();
+                    s.connect(new InetSocketAddress(host, port), 5000);
+                    Link l = new Link(this, s, true);
+                    l.run();
+                    known = l.getPeer();
+                } catch (IOException e) {
+                    if (Log.DEBUG) {
+                        Log.debug("cluster> " + host + ":" + port + ": "
+                                + e.getLocalizedMessage());
+                    }
+                }
+            }
+            // a second or two, at random, so two nodes linking to each
+            // other at the same time soon stop getting in each other's way
+            try {
+                Thread.sleep(1000 + ThreadLocalRandom.current().nextInt(1000));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,302 @@
+package chatland.cluster;
+
+import chatland.IRCHandler;
+import chatland.LineDecoder;
+import chatland.Log;
+import chatland.Message;
+import chatland.ParsedLine;
+import chatland.Settings;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One TCP connection to another node of the Cluster. Both nodes start with
+ * "HELLO node secret", the one which connected first, and a node which does
+ * not know Settings.CLUSTER_SECRET is hung up on. The node which was connected
+ * to only answers once the secret was right, so it never tells the secret to
+ * whoever happens to connect. After that each line is what one of the
+ * sending node's own users did, as "id COMMAND ...", the id being the user's
+ * IRCHandler.getId() over there:
+ *
+ * - id USER nick user host :real name, a user this node should know about.
+ *
+ * - id JOIN, PART, NICK, QUIT, TOPIC or PRIVMSG, just as the user sent it.
+ *
+ * A line about the nodes themselves has the id 0:
+ *
+ * - 0 KILL id :reason, one of our users has to go (its nick collided).
+ *
+ * - 0 TOPIC #channel :topic, the topic of a channel, sent when linking.
+ *
+ * Every user of the other node has a stand in IRCHandler here, with a
+ * RemoteTransport, and its commands go into that IRCHandler's input queue, so
+ * the IRCWorkers run them the same way as a local user's.
+ *
+ * Lines are read with a LineDecoder of LINE_BYTES. That is twice a client's
+ * limit: a line here is a client's line with the id in front of it, or a USER
+ * line with the host added, and neither may be cut short.
+ *
+ * The reading is done by whoever calls run(), the writing by the Link's own
+ * thread, from a queue of Settings.CLUSTER_QUEUE_LINES lines. A node which
+ * can't keep up with that is unlinked, rather than holding up the IRCWorkers.
+ * When a Link goes down all of its users QUIT here, the way a netsplit looks.
+ *
+ * @author ultasun
+ */
+public class Link implements Runnable {
+
+    // the longest line from another node, CR LF included
+    private static final int LINE_BYTES = 2 * LineDecoder.MAX_LINE;
+    // how long the other node has to say HELLO
+    private static final int HELLO_MILLIS = 10000;
+
+    private final Cluster cluster;
+    private final Socket socket;
+    private final LinkedBlockingQueue<String> queue;
+    // the other node's users, by their id over there
+    private final ConcurrentHashMap<Long, IRCHandler> users;
+    private final Thread writer;
+    private final AtomicBoolean closed;
+    // only the reading thread uses it
+    private final ParsedLine parsed;
+    // true if this node connected, and so says HELLO first
+    private final boolean dialed;
+    private volatile String peer;
+
+    Link(Cluster cluster, Socket socket, boolean dialed) {
+        this.cluster = cluster;
+        this.socket = socket;
+        this.dialed = dialed;
+        queue = new LinkedBlockingQueue<>(Settings.CLUSTER_QUEUE_LINES);
+        users = new ConcurrentHashMap<>();
+        writer = new Thread(this::write, "Link-writer");
+        writer.setDaemon(true);
+        closed = new AtomicBoolean();
+        parsed = new ParsedLine();
+    }
+
+    /**
+     * Reads from the other node until the Link goes down.
+     */
+    @Override
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            LineDecoder decoder = new LineDecoder(LINE_BYTES);
+            writer.start();
+            if (dialed) {
+                hello();
+            }
+            socket.setSoTimeout(HELLO_MILLIS);
+            String hello = decoder.readLine(in);
+            socket.setSoTimeout(0);
+            if (hello == null || !hello.startsWith("HELLO ")) {
+                throw new IOException("no HELLO");
+            }
+            String[] words = hello.split(" ", 3);
+            // compared in constant time, so the time taken gives nothing away
+            if (words.length < 3 || !MessageDigest.isEqual(
+                    words[2].getBytes(StandardCharsets.UTF_8),
+                    Settings.CLUSTER_SECRET.getBytes(
+                            StandardCharsets.UTF_8))) {
+                Log.warn("cluster> " + getName() + " does not know the secret");
+                return;
+            }
+            if (!dialed) {
+                hello();
+            }
+            peer = words[1];
+            writer.setName("Link-writer-" + peer);
+            if (peer.isEmpty() || peer.equals(cluster.getNode())
+                    || !cluster.linked(this)) {
+                return;
+            }
+            String line;
+            while ((line = decoder.readLine(in)) != null) {
+                cluster.received();
+                receive(line);
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                Log.info("cluster> " + getName() + ": "
+                        + e.getLocalizedMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Queues a line for the other node. Never waits.
+     *
+     * @param line the line, without the line ending
+     */
+    public void send(String line) {
+        if (closed.get()) {
+            return;
+        }
+        if (!queue.offer(line)) {
+            Log.warn("cluster> " + getName() + " is not keeping up");
+            close();
+        }
+    }
+
+    /**
+     * Queues a line about one of our own users.
+     *
+     * @param from the local user
+     * @param command what the user did
+     */
+    public void send(IRCHandler from, String command) {
+        send(from.getId() + " " + command);
+    }
+
+    /**
+     * Unlinks, and every user of the other node QUITs here. Calling this
+     * more than once is harmless.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        writer.interrupt();
+        if (cluster.unlinked(this)) {
+            Log.info("cluster> unlinked from " + peer + ", "
+                    + users.size() + " users lost");
+        }
+        String split = "QUIT :" + cluster.getNode() + " " + peer;
+        for (IRCHandler h : new ArrayList<>(users.values())) {
+            h.insertInputQueue(new Message(h, split));
+        }
+    }
+
+    /**
+     * @return String the other node's name, null until it has said HELLO
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * @return int how many users the other node has
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * One of the other node's users is gone here.
+     */
+    void forget(long origin, IRCHandler h) {
+        users.remove(origin, h);
+    }
+
+    private void hello() {
+        send("HELLO " + cluster.getNode() + " " + Settings.CLUSTER_SECRET);
+    }
+
+    private String getName() {
+        return peer != null ? peer : String.valueOf(
+                socket.getRemoteSocketAddress());
+    }
+
+    private void receive(String line) {
+        int space = line.indexOf(' ');
+        if (space < 0 || !parsed.parse(line.substring(space + 1))) {
+            return;
+        }
+        long id;
+        try {
+            id = Long.parseLong(line.substring(0, space));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (id == 0) {
+            if (parsed.commandIs("KILL") && parsed.getParamCount() >= 1) {
+                cluster.kill(parsed.getParam(0), parsed.getParam(1, ""));
+            } else if (parsed.commandIs("TOPIC")
+                    && parsed.getParamCount() >= 2) {
+                cluster.burstTopic(parsed.getParam(0), parsed.getParam(1));
+            }
+            return;
+        }
+        if (parsed.commandIs("USER")) {
+            if (parsed.getParamCount() >= 4 && !users.containsKey(id)) {
+                arrived(id);
+            }
+            return;
+        }
+        if (!(parsed.commandIs("JOIN") || parsed.commandIs("PART")
+                || parsed.commandIs("NICK") || parsed.commandIs("QUIT")
+                || parsed.commandIs("TOPIC")
+                || parsed.commandIs("PRIVMSG"))) {
+            return; // nothing else is a node's business
+        }
+        IRCHandler h = users.get(id);
+        if (h != null) {
+            h.insertInputQueue(new Message(h, line.substring(space + 1)));
+        }
+    }
+
+    /**
+     * A user of the other node is introduced. If somebody here has the nick
+     * already, the other node is told to get rid of its user.
+     */
+    private void arrived(long id) {
+        IRCHandler h;
+        try {
+            h = new IRCHandler(cluster.getChatLand().getIRCWorker(),
+                    parsed.getParam(0), parsed.getParam(1),
+                    parsed.getParam(3),
+                    new RemoteTransport(this, id, parsed.getParam(2)));
+        } catch (IOException e) {
+            return; // a RemoteTransport never throws it
+        }
+        users.put(id, h);
+        if (!cluster.getChatLand().registerHandle(h)) {
+            users.remove(id);
+            send("0 KILL " + id + " :Nick collision with "
+                    + cluster.getNode());
+        }
+    }
+
+    private void write() {
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8), 65536);
+            while (!closed.get()) {
+                String line = queue.take();
+                int lines = 0;
+                do {
+                    out.write(line);
+                    out.write("\r\n");
+                    lines++;
+                } while ((line = queue.poll()) != null);
+                out.flush();
+                cluster.sent(lines);
+            }
+        } catch (IOException | InterruptedException e) {
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chatland.cluster;
+
+import chatland.IRCHandler;
+import chatland.Transport;
+import java.net.Socket;
+
+/**
+ * The Transport of a user who is connected to another node of the Cluster.
+ * Its IRCHandler is a stand in, so that the user can be found by nick and be
+ * a member of channels here like everybody else. Its input is what the other
+ * node says the user did, put in the input queue by the Link, and nothing is
+ * ever sent to it: the other node tells the user itself.
+ *
+ * @author ultasun
+ */
+public class RemoteTransport implements Transport {
+
+    private final Link link;
+    private final long origin;
+    private final String host;
+    private IRCHandler h;
+
+    /**
+     * @param link the Link to the user's node
+     * @param origin the user's id on its own node
+     * @param host the user's host, as its own node sees it
+     */
+    RemoteTransport(Link link, long origin, String host) {
+        this.link = link;
+        this.origin = origin;
+        this.host = host;
+    }
+
+    @Override
+    public void attach(IRCHandler h) {
+        this.h = h;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void outputReady() {
+    }
+
+    @Override
+    public void close() {
+        link.forget(origin, h);
+    }
+
+    @Override
+    public Socket getSocket() {
+        return link.getSocket();
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    public Link getLink() {
+        return link;
+    }
+
+    /**
+     * @return long the user's id on its own node, which is how the Link
+     * talks about it
+     */
+    public long getOrigin() {
+        return origin;
+    }
+}
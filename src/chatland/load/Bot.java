@@ -0,0 +1,288 @@
+package chatland.load;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One synthetic client of LoadGen. It goes through the same handshake as a
+ * real client (NICK and USER, wait for the 001, JOIN, wait to see its own
+ * JOINs), then talks, if it is a talker, and QUITs and comes back with a new
+ * nick, if it has a life time. Only its Swarm's thread touches it.
+ *
+ * @author ultasun
+ */
+class Bot {
+
+    enum State {
+        DOWN, CONNECTING, REGISTERING, JOINING, ACTIVE, QUITTING
+    }
+
+    // the part of a PRIVMSG line which is not padding, give or take
+    private static final int OVERHEAD = 40;
+
+    private final Swarm swarm;
+    private final InetSocketAddress server;
+    private final int id;
+    private final String[] channels;
+    private final boolean talks;
+    private final long interval;
+    private final Random random;
+    private final String padding;
+
+    private final ByteBuffer in, out;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private State state;
+    private String nick;
+    private int generation, joinedCount;
+    private long connectedAt, nextTalk, quitAt;
+
+    // when the Swarm should call onTimer(), and whether it is going to
+    long due;
+    boolean timed;
+
+    Bot(Swarm swarm, InetSocketAddress server, int id, String[] channels,
+            boolean talks, long interval, Random random) {
+        this.swarm = swarm;
+        this.server = server;
+        this.id = id;
+        this.channels = channels;
+        this.talks = talks && interval > 0;
+        this.interval = interval;
+        this.random = random;
+        char[] pad = new char[Math.max(0, LoadGen.LINE_BYTES - OVERHEAD)];
+        Arrays.fill(pad, 'x');
+        padding = new String(pad);
+        in = ByteBuffer.allocate(16384);
+        out = ByteBuffer.allocate(65536);
+        state = State.DOWN;
+        generation = 0;
+    }
+
+    void onTimer(long now) throws IOException {
+        switch (state) {
+            case DOWN:
+                connect(now);
+                break;
+            case ACTIVE:
+                if (quitAt != 0 && now - quitAt >= 0) {
+                    quit();
+                } else {
+                    talk(now);
+                    scheduleNext();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void connect(long now) throws IOException {
+        nick = "lg" + id + (generation > 0 ? "_" + generation : "");
+        connectedAt = now;
+        swarm.sessions++;
+        in.clear();
+        out.clear();
+        state = State.CONNECTING;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        key = channel.register(swarm.selector, SelectionKey.OP_CONNECT, this);
+        if (channel.connect(server)) {
+            connected();
+        }
+    }
+
+    void connected() throws IOException {
+        channel.finishConnect();
+        state = State.REGISTERING;
+        key.interestOps(SelectionKey.OP_READ);
+        send("NICK " + nick);
+        send("USER " + nick + " 0 * :LoadGen " + id);
+        flush();
+    }
+
+    void read(long now) throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException();
+        }
+        in.flip();
+        byte[] bytes = in.array();
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (bytes[i] == '\n') {
+                int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                onLine(new String(bytes, start, end - start,
+                        StandardCharsets.ISO_8859_1), now);
+                start = i + 1;
+            }
+        }
+        in.position(start);
+        in.compact();
+        if (!in.hasRemaining()) {
+            in.clear(); // a line longer than the buffer, forget it
+        }
+        flush();
+    }
+
+    private void onLine(String line, long now) {
+        if (line.startsWith("PING ")) {
+            send("PONG " + line.substring(5));
+            return;
+        }
+        int from = line.indexOf(' ') + 1;
+        int to = line.indexOf(' ', from);
+        if (from == 0 || to < 0) {
+            return;
+        }
+        String command = line.substring(from, to);
+        switch (command) {
+            case "PRIVMSG":
+                int at = line.indexOf(" :lg ", to);
+                if (at > 0) {
+                    int end = line.indexOf(' ', at + 5);
+                    try {
+                        swarm.delivered(Long.parseLong(line.substring(at + 5,
+                                end < 0 ? line.length() : end)), now);
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                break;
+            case "001":
+                if (state == State.REGISTERING) {
+                    state = State.JOINING;
+                    joinedCount = 0;
+                    send("JOIN " + String.join(",", channels));
+                }
+                break;
+            case "JOIN":
+                if (state == State.JOINING
+                        && line.startsWith(":" + nick + "!")
+                        && ++joinedCount == channels.length) {
+                    active(now);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void active(long now) {
+        state = State.ACTIVE;
+        swarm.ready(connectedAt, now);
+        if (talks) {
+            nextTalk = now + (long) (random.nextDouble() * interval);
+        }
+        quitAt = 0;
+        if (LoadGen.LIFE_MILLIS > 0) {
+            long life = LoadGen.LIFE_MILLIS / 5 + (long) (random.nextDouble()
+                    * LoadGen.LIFE_MILLIS * 4 / 5);
+            quitAt = now + TimeUnit.MILLISECONDS.toNanos(Math.max(1, life));
+        }
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        if (talks && quitAt != 0) {
+            swarm.schedule(this, (nextTalk - quitAt < 0) ? nextTalk : quitAt);
+        } else if (talks) {
+            swarm.schedule(this, nextTalk);
+        } else if (quitAt != 0) {
+            swarm.schedule(this, quitAt);
+        }
+    }
+
+    private void talk(long now) throws IOException {
+        if (!talks || now - nextTalk < 0) {
+            return;
+        }
+        String to = channels[random.nextInt(channels.length)];
+        long sentAt = System.nanoTime();
+        if (send("PRIVMSG " + to + " :lg " + sentAt + " " + padding)) {
+            swarm.sent(sentAt);
+        }
+        nextTalk += interval;
+        if (now - nextTalk > TimeUnit.SECONDS.toNanos(1)) {
+            // we fell far behind, don't try to catch up all at once
+            nextTalk = now + interval;
+        }
+        flush();
+    }
+
+    private void quit() throws IOException {
+        state = State.QUITTING;
+        swarm.unready();
+        send("QUIT :storm");
+        flush();
+    }
+
+    /**
+     * The connection failed or was closed. Come back later, as a new nick.
+     */
+    void closed(long now) {
+        swarm.unschedule(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+        long delay;
+        switch (state) {
+            case QUITTING:
+                // the server closing on our QUIT, as it should
+                delay = 100 + random.nextInt(400);
+                break;
+            case CONNECTING:
+                swarm.refused++;
+                delay = 1000;
+                break;
+            case ACTIVE:
+                swarm.unready();
+                swarm.dropped++;
+                delay = 1000;
+                break;
+            default:
+                swarm.dropped++;
+                delay = 1000;
+                break;
+        }
+        state = State.DOWN;
+        generation++;
+        swarm.schedule(this, now + TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    /**
+     * Puts a line in the out buffer, unless the server has stopped reading
+     * and the buffer is full. Then the line is counted as unsent.
+     *
+     * @return boolean true if the line will be sent
+     */
+    private boolean send(String line) {
+        byte[] b = (line + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        if (out.remaining() < b.length) {
+            swarm.unsent++;
+            return false;
+        }
+        out.put(b);
+        return true;
+    }
+
+    void flush() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        key.interestOps(out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+}
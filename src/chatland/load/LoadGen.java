@@ -0,0 +1,258 @@
+package chatland.load;
+
+import chatland.LatencyHistogram;
+import chatland.Settings;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A swarm of synthetic IRC clients, for putting a local server under load and
+ * measuring it. Start a server (any transport, and with
+ * -Dchatland.flood.rate=0, see below), then, on the same machine:
+ *
+ * java -Dchatland.load.profile=chatty -cp dist/chatland-jircd.jar
+ * chatland.load.LoadGen
+ *
+ * Each client registers with NICK and USER, JOINs its channels, and then the
+ * talkers send PRIVMSGs to them at chatland.load.rate messages a second,
+ * all together. Every PRIVMSG carries the System.nanoTime() it was sent at,
+ * and every client which receives it records how long it took, so the
+ * latency includes the server's queues and both sockets. Only messages sent
+ * during the measurement (after the warm up) are counted.
+ *
+ * The server's FloodControl lets a client send a couple of PRIVMSGs a second
+ * to a big channel, and makes the rest wait. The talkers of the chatty profile
+ * send five a second, so with flood control on what gets measured is the
+ * waiting. LoadGen says so when its talkers send more than one a second.
+ *
+ * Everything is chosen with a java.util.Random seeded from
+ * chatland.load.seed, so two runs with the same switches make the same
+ * clients, with the same channels and the same timing.
+ *
+ * The switches, besides chatland.port:
+ *
+ * - chatland.load.profile: chatty (the default), idle or storm, see Profile.
+ * These only set the defaults of the switches below.
+ *
+ * - chatland.load.host: where the server is (127.0.0.1)
+ *
+ * - chatland.load.ports: the ports to connect to, separated by commas
+ * (chatland.port). With the ports of several nodes of a Cluster the clients
+ * are spread over them evenly, so the channels have members on every node,
+ * and the rates measured are for the whole Cluster.
+ *
+ * - chatland.load.clients, chatland.load.channels, chatland.load.perClient,
+ * chatland.load.talkers, chatland.load.rate, chatland.load.lifeMillis: see
+ * Profile.
+ *
+ * - chatland.load.seconds: how long to measure (30)
+ *
+ * - chatland.load.warmupSeconds: how long to run before measuring (5)
+ *
+ * - chatland.load.connectRate: new connections a second while starting up
+ * (500), so the server's accept backlog is not overrun.
+ *
+ * - chatland.load.lineBytes: about how long each PRIVMSG line is (80)
+ *
+ * - chatland.load.loops: how many threads run the clients (2)
+ *
+ * - chatland.load.seed: the seed (1)
+ *
+ * The results are printed as "key=value" lines, so a script can pick them
+ * up. "unsent" counts the lines a client had no room for, because the server
+ * stopped reading from it. Those PRIVMSGs are not counted as sent.
+ *
+ * @author ultasun
+ */
+public final class LoadGen {
+
+    static final Profile PROFILE = Profile.valueOf(System.getProperty(
+            "chatland.load.profile", "chatty").toUpperCase());
+
+    static final String HOST
+            = System.getProperty("chatland.load.host", "127.0.0.1");
+
+    static final String[] PORTS = System.getProperty("chatland.load.ports",
+            Integer.toString(Settings.PORT)).split(",");
+
+    static final int CLIENTS = Math.max(1,
+            Integer.getInteger("chatland.load.clients", PROFILE.clients));
+
+    static final int CHANNELS = Math.max(1,
+            Integer.getInteger("chatland.load.channels", PROFILE.channels));
+
+    static final int PER_CLIENT = Math.min(CHANNELS, Math.max(1,
+            Integer.getInteger("chatland.load.perClient",
+                    PROFILE.perClient)));
+
+    static final double TALKERS = Math.min(1, Math.max(0,
+            Double.parseDouble(System.getProperty("chatland.load.talkers",
+                    Double.toString(PROFILE.talkers)))));
+
+    static final int RATE = Math.max(0,
+            Integer.getInteger("chatland.load.rate", PROFILE.rate));
+
+    static final long LIFE_MILLIS = Math.max(0,
+            Long.getLong("chatland.load.lifeMillis", PROFILE.lifeMillis));
+
+    static final int SECONDS = Math.max(1,
+            Integer.getInteger("chatland.load.seconds", 30));
+
+    static final int WARMUP_SECONDS = Math.max(0,
+            Integer.getInteger("chatland.load.warmupSeconds", 5));
+
+    static final int CONNECT_RATE = Math.max(1,
+            Integer.getInteger("chatland.load.connectRate", 500));
+
+    static final int LINE_BYTES = Math.max(32,
+            Integer.getInteger("chatland.load.lineBytes", 80));
+
+    static final int LOOPS = Math.max(1,
+            Integer.getInteger("chatland.load.loops", 2));
+
+    static final long SEED = Long.getLong("chatland.load.seed", 1);
+
+    // only PRIVMSGs sent between these two System.nanoTime()s are counted
+    static volatile long measureFrom = Long.MAX_VALUE;
+    static volatile long measureTo = Long.MAX_VALUE;
+
+    private LoadGen() {
+    }
+
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        printSettings();
+        InetSocketAddress[] servers = new InetSocketAddress[PORTS.length];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new InetSocketAddress(HOST,
+                    Integer.parseInt(PORTS[i].trim()));
+        }
+
+        Swarm[] swarms = new Swarm[LOOPS];
+        for (int i = 0; i < swarms.length; i++) {
+            swarms[i] = new Swarm(i);
+        }
+
+        // which clients talk, and how often each of them does
+        Random random = new Random(SEED);
+        int talkerCount = (int) Math.round(CLIENTS * TALKERS);
+        if (TALKERS > 0 && RATE > 0) {
+            talkerCount = Math.max(1, talkerCount);
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+        boolean[] talks = new boolean[CLIENTS];
+        for (int i = 0; i < talkerCount; i++) {
+            talks[order.get(i)] = true;
+        }
+        if (talkerCount > 0 && RATE > talkerCount) {
+            System.out.println("note: each talker sends "
+                    + RATE / talkerCount + " PRIVMSGs a second, start the"
+                    + " server with -Dchatland.flood.rate=0 or its flood"
+                    + " control will make them wait");
+        }
+        long interval = (RATE > 0 && talkerCount > 0)
+                ? TimeUnit.SECONDS.toNanos(talkerCount) / RATE : 0;
+
+        long start = System.nanoTime();
+        long connectGap = TimeUnit.SECONDS.toNanos(1) / CONNECT_RATE;
+        for (int i = 0; i < CLIENTS; i++) {
+            Swarm s = swarms[i % swarms.length];
+            s.add(new Bot(s, servers[i % servers.length], i,
+                    pickChannels(random), talks[i], interval,
+                    new Random(SEED * 31 + i)), start + i * connectGap);
+        }
+        for (Swarm s : swarms) {
+            s.start();
+        }
+
+        measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        measureTo = measureFrom + TimeUnit.SECONDS.toNanos(SECONDS);
+        long lastSent = 0, lastReceived = 0;
+        for (int second = 1; second <= WARMUP_SECONDS + SECONDS; second++) {
+            long wake = start + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, wake - System.nanoTime()));
+            long sent = 0, received = 0, ready = 0;
+            for (Swarm s : swarms) {
+                sent += s.sentAll;
+                received += s.receivedAll;
+                ready += s.ready;
+            }
+            System.out.println("t=" + second + "s"
+                    + (second <= WARMUP_SECONDS ? " (warm up)" : "")
+                    + " ready=" + ready + "/" + CLIENTS
+                    + " sent/s=" + (sent - lastSent)
+                    + " received/s=" + (received - lastReceived));
+            lastSent = sent;
+            lastReceived = received;
+        }
+        // let the last messages of the measurement arrive
+        TimeUnit.SECONDS.sleep(1);
+        for (Swarm s : swarms) {
+            s.stop();
+        }
+        report(swarms);
+    }
+
+    private static String[] pickChannels(Random random) {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < CHANNELS; i++) {
+            all.add(i);
+        }
+        Collections.shuffle(all, random);
+        String[] mine = new String[PER_CLIENT];
+        for (int i = 0; i < mine.length; i++) {
+            mine[i] = "#load" + all.get(i);
+        }
+        return mine;
+    }
+
+    private static void printSettings() {
+        System.out.println("profile=" + PROFILE.name().toLowerCase()
+                + " host=" + HOST + " ports=" + String.join(",", PORTS)
+                + " clients=" + CLIENTS + " channels=" + CHANNELS
+                + " perClient=" + PER_CLIENT + " talkers=" + TALKERS
+                + " rate=" + RATE + " lifeMillis=" + LIFE_MILLIS
+                + " seconds=" + SECONDS + " warmupSeconds=" + WARMUP_SECONDS
+                + " loops=" + LOOPS + " seed=" + SEED);
+    }
+
+    private static void report(Swarm[] swarms) {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram joined = new LatencyHistogram();
+        long sent = 0, received = 0, sessions = 0, refused = 0, dropped = 0;
+        long unsent = 0;
+        for (Swarm s : swarms) {
+            latency.add(s.latency);
+            joined.add(s.joined);
+            sent += s.sent;
+            received += s.received;
+            sessions += s.sessions;
+            refused += s.refused;
+            dropped += s.dropped;
+            unsent += s.unsent;
+        }
+        System.out.println("sent=" + sent);
+        System.out.println("received=" + received);
+        System.out.println("sent_per_second=" + sent / SECONDS);
+        System.out.println("received_per_second=" + received / SECONDS);
+        System.out.println("latency_p50_us=" + latency.percentile(0.50));
+        System.out.println("latency_p99_us=" + latency.percentile(0.99));
+        System.out.println("latency_p999_us=" + latency.percentile(0.999));
+        System.out.println("latency_max_us=" + latency.getMax());
+        System.out.println("sessions=" + sessions);
+        System.out.println("join_p50_us=" + joined.percentile(0.50));
+        System.out.println("join_p99_us=" + joined.percentile(0.99));
+        System.out.println("connect_failures=" + refused);
+        System.out.println("disconnects=" + dropped);
+        System.out.println("unsent=" + unsent);
+    }
+}
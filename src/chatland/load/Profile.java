@@ -0,0 +1,48 @@
+package chatland.load;
+
+/**
+ * The scenarios LoadGen can play. Each one is only a set of defaults, any of
+ * them can be changed with the chatland.load switches (see LoadGen).
+ *
+ * - CHATTY: a couple of hundred users in one channel, all of them talking.
+ * Mostly measures channel fan-out.
+ *
+ * - IDLE: thousands of users spread over many channels, one in a hundred
+ * talking. Measures what idle connections cost everybody else.
+ *
+ * - STORM: users which connect, register, JOIN a few channels, talk for a
+ * second or few, QUIT and come back with a new nick, over and over. Measures
+ * registration, JOIN and QUIT under churn.
+ *
+ * @author ultasun
+ */
+public enum Profile {
+
+    CHATTY(200, 1, 1, 1.0, 1000, 0),
+    IDLE(5000, 50, 2, 0.01, 100, 0),
+    STORM(500, 10, 3, 1.0, 200, 5000);
+
+    final int clients, channels, perClient;
+    final double talkers;
+    final int rate;
+    final long lifeMillis;
+
+    /**
+     * @param clients how many connections
+     * @param channels how many channels there are
+     * @param perClient how many of them each client joins
+     * @param talkers the part of the clients which sends PRIVMSGs
+     * @param rate PRIVMSGs per second, from all the talkers together
+     * @param lifeMillis how long, at most, a client stays before it QUITs
+     * and reconnects (0, for ever)
+     */
+    Profile(int clients, int channels, int perClient, double talkers,
+            int rate, long lifeMillis) {
+        this.clients = clients;
+        this.channels = channels;
+        this.perClient = perClient;
+        this.talkers = talkers;
+        this.rate = rate;
+        this.lifeMillis = lifeMillis;
+    }
+}
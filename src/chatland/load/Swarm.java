@@ -0,0 +1,161 @@
+package chatland.load;
+
+import chatland.LatencyHistogram;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * One thread of LoadGen, running any number of Bots on a Selector, the same
+ * way a SelectorLoop runs connections on the server. Bots which want to do
+ * something later (connect, talk, QUIT) wait in a queue ordered by when, and
+ * the Selector never sleeps past the first of them.
+ *
+ * The counters are only written by this Swarm's thread. The volatile ones
+ * are read by LoadGen every second, the others once the thread has stopped.
+ *
+ * @author ultasun
+ */
+class Swarm implements Runnable {
+
+    final Selector selector;
+    private final Thread thread;
+    private final PriorityQueue<Bot> timers;
+    private volatile boolean running;
+
+    volatile long sentAll, receivedAll, ready;
+    long sent, received, sessions, refused, dropped, unsent;
+    final LatencyHistogram latency, joined;
+
+    Swarm(int number) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "Swarm-" + number);
+        timers = new PriorityQueue<>((a, b) -> Long.signum(a.due - b.due));
+        latency = new LatencyHistogram();
+        joined = new LatencyHistogram();
+    }
+
+    /**
+     * Adds a Bot, which will connect at the System.nanoTime() given. Only
+     * before start().
+     */
+    void add(Bot b, long connectAt) {
+        schedule(b, connectAt);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    void schedule(Bot b, long due) {
+        unschedule(b);
+        b.due = due;
+        b.timed = true;
+        timers.add(b);
+    }
+
+    void unschedule(Bot b) {
+        if (b.timed) {
+            timers.remove(b);
+            b.timed = false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                Bot b;
+                while ((b = timers.peek()) != null && b.due - now <= 0) {
+                    timers.poll();
+                    b.timed = false;
+                    try {
+                        b.onTimer(now);
+                    } catch (IOException e) {
+                        b.closed(now);
+                    }
+                }
+                long wait = (b == null) ? 100
+                        : Math.max(1, (b.due - now) / 1000000L);
+                selector.select(wait);
+
+                now = System.nanoTime();
+                Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Bot bot = (Bot) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            bot.connected();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            bot.read(now);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            bot.flush();
+                        }
+                    } catch (IOException e) {
+                        bot.closed(now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(thread.getName() + "> "
+                    + e.getLocalizedMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void sent(long at) {
+        sentAll++;
+        if (at - LoadGen.measureFrom >= 0 && at - LoadGen.measureTo < 0) {
+            sent++;
+        }
+    }
+
+    /**
+     * A PRIVMSG arrived which was sent at the System.nanoTime() given.
+     */
+    void delivered(long sentAt, long now) {
+        receivedAll++;
+        if (sentAt - LoadGen.measureFrom >= 0
+                && sentAt - LoadGen.measureTo < 0) {
+            received++;
+            latency.record((now - sentAt) / 1000);
+        }
+    }
+
+    /**
+     * A Bot is in all its channels, having started to connect at the
+     * System.nanoTime() given.
+     */
+    void ready(long connectedAt, long now) {
+        ready++;
+        if (connectedAt - LoadGen.measureFrom >= 0
+                && connectedAt - LoadGen.measureTo < 0) {
+            joined.record((now - connectedAt) / 1000);
+        }
+    }
+
+    void unready() {
+        ready--;
+    }
+}
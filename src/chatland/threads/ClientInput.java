@@ -1,8 +1,12 @@
 package chatland.threads;
 
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+import chatland.FloodControl;
 import chatland.IRCHandler;
+import chatland.LineDecoder;
+import chatland.Log;
 import chatland.Message;
 
 /**
@@ -12,32 +16,63 @@ import chatland.Message;
  * threads will pull this message out and process it, ultimately putting the new
  * message in each user's output queue.
  *
+ * A line the FloodControl says has to wait is held here, and nothing more is
+ * read until it has gone in, so the client's socket fills up instead of the
+ * input queue.
+ *
  * @author ultasun
  */
-public class ClientInput extends Thread {
+public class ClientInput implements Runnable {
 
     private final IRCHandler client;
-    private final Scanner reader;
+    private final InputStream in;
+    private final LineDecoder reader;
 
     public ClientInput(IRCHandler h) throws IOException {
-        this.client = h;
-        reader = new Scanner(h.getSocket().getInputStream());
+        this(h, null);
+    }
 
-        // do some things upon a new connection
-        client.insertInputQueue(new Message(client, "WELCOMEMSG"));
-        client.insertInputQueue(new Message(client, "MOTD"));
+    /**
+     * @param h the IRCHandler to read for
+     * @param reader the LineDecoder already reading h's socket, or null
+     * @throws IOException if the socket is gone
+     */
+    public ClientInput(IRCHandler h, LineDecoder reader) throws IOException {
+        this.client = h;
+        this.in = h.getSocket().getInputStream();
+        this.reader = reader != null ? reader : new LineDecoder();
     }
 
     @Override
     public void run() {
         String thisread;
+        String reason = "Connection closed";
+        FloodControl flood = client.getFloodControl();
         try {
-            while (reader.hasNext()) {
-                thisread = reader.nextLine();
+            while ((thisread = reader.readLine(in)) != null) {
+                client.active();
+
+                if (Log.TRACE) {
+                    Log.trace(client.getHandle() + " ==> " + thisread);
+                }
 
-                String printout = client.getHandle() + " ==> " + thisread;
-                System.out.println(printout);
-                System.out.flush();
+                long wait = flood.admit(FloodControl.cost(thisread));
+                if (wait < 0) {
+                    Log.info(client.getHandle() + " is flooding");
+                    reason = "Excess Flood";
+                    break;
+                }
+                if (wait > 0) {
+                    long until = System.nanoTime() + wait;
+                    do {
+                        LockSupport.parkNanos(wait);
+                        if (Thread.interrupted()) {
+                            // parkNanos() would not wait any more, and we
+                            // are being shut down anyway
+                            return;
+                        }
+                    } while ((wait = until - System.nanoTime()) > 0);
+                }
 
                 Message newMsg = new Message(client, thisread);
                 client.insertInputQueue(newMsg);
@@ -45,7 +80,10 @@ public class ClientInput extends Thread {
         } catch (Exception e) {
 
         } finally {
-            System.out.println(client.getSocket() + " dying...");
+            Log.info(client.getSocket() + " dying...");
+            // if the client went away without a QUIT, the IRCWorker still
+            // has to take it off the roster and out of its channels
+            client.insertInputQueue(new Message(client, "QUIT :" + reason));
         }
     }
 }
@@ -1,40 +1,72 @@
 package chatland.threads;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 import chatland.IRCHandler;
+import chatland.Log;
 import chatland.Message;
+import chatland.Settings;
 
 /**
  * For sending data TO the client/internet after being parsed by the server.
  *
+ * Messages are written as their already encoded frames (see Message), so a
+ * line sent to a whole channel is not encoded again for every member.
+ *
+ * Once a Message arrives, everything else already in the output queue goes
+ * out with it in a single write, up to Settings.OUTPUT_BATCH_BYTES. If
+ * Settings.OUTPUT_LINGER_MILLIS is set we also wait that long for more, so a
+ * burst of JOINs or QUITs costs a few writes instead of one per line.
+ *
  * @author ultasun
  */
-public class ClientOutput extends Thread {
+public class ClientOutput implements Runnable {
 
-    private final PrintWriter writer;
+    private final OutputStream writer;
     private final IRCHandler client;
 
     public ClientOutput(IRCHandler h) throws IOException {
         client = h;
-        writer = new PrintWriter(client.getSocket().getOutputStream());
+        writer = new BufferedOutputStream(
+                client.getSocket().getOutputStream(),
+                Settings.OUTPUT_BATCH_BYTES);
     }
 
     @Override
     public void run() {
         try {
+            long linger = TimeUnit.MILLISECONDS.toNanos(
+                    Settings.OUTPUT_LINGER_MILLIS);
             while (!Thread.interrupted()) {
                 Message m = client.removeOutputQueue();
-                System.out.println(client.getHandle() + " <== " + m);
-                System.out.flush();
-                writer.println(m);
+                long deadline = System.nanoTime() + linger;
+                int batched = 0;
+                while (m != null) {
+                    if (Log.TRACE) {
+                        Log.trace(client.getHandle() + " <== " + m);
+                    }
+                    byte[] frame = m.getFrame();
+                    writer.write(frame);
+                    batched += frame.length;
+                    if (batched >= Settings.OUTPUT_BATCH_BYTES) {
+                        break;
+                    }
+                    m = client.pollOutputQueue();
+                    if (m == null && linger > 0) {
+                        long left = deadline - System.nanoTime();
+                        if (left > 0) {
+                            m = client.pollOutputQueue(left);
+                        }
+                    }
+                }
                 writer.flush();
             }
-        } catch (InterruptedException ex) {
+        } catch (InterruptedException | IOException ex) {
 
         } finally {
-            System.out.println("clientoutput> " + client.getSocket()
-                    + " dying...");
+            Log.info("clientoutput> " + client.getSocket() + " dying...");
         }
     }
 }
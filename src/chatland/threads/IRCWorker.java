@@ -1,10 +1,39 @@
 package chatland.threads;
 
+import chatland.Census;
+import chatland.Channel;
 import chatland.ChatLand;
+import chatland.Commands;
+import chatland.FloodControl;
+import chatland.History;
+import chatland.LatencyHistogram;
 import chatland.Message;
 import chatland.IRCHandler;
+import chatland.Log;
+import chatland.Metrics;
+import chatland.Monitor;
+import chatland.ParsedLine;
+import chatland.Settings;
+import chatland.cluster.Cluster;
+import chatland.cluster.Link;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This is where all the "protocol translation" is performed. The IRCWorker
@@ -12,202 +41,543 @@ import java.util.Scanner;
  * ChatLand, and pushes messages into the necessary IRCHandler Output queue(s).
  *
  * I decided to use an ArrayList for "rosters" of IRCHandlers. We do want the
- * ability to transverse a list cheaply and often, especially when we go to find
- * work.
+ * ability to transverse a list cheaply and often. A Channel keeps its members
+ * in an array too, and hands out snapshots of it to walk (see Channel).
  *
- * Each IRC command has an associated method. All the methods take one argument,
- * called the userLine. The userLine is the string-line we've received from the
- * 'net. Some methods don't even use the userLine, because some commands don't
- * have any arguments (MOTD, for example)
+ * Finding work does not walk the roster. Each IRCHandler puts itself in the
+ * ready queue when it gets input, and the IRCWorker takes one Message from the
+ * IRCHandler at the head of that queue, so finding the next Message costs the
+ * same however many users are connected. The IRCWorker only sleeps when the
+ * ready queue is empty.
+ *
+ * There can be several IRCWorkers (-Dchatland.workers), each one a shard of
+ * the ChatLand with its own thread:
+ *
+ * - Every user has a home IRCWorker, which runs all of that user's commands.
+ * The home IRCWorker keeps the set of its users.
+ *
+ * - Every channel is owned by the IRCWorker its name hashes to. Only that
+ * IRCWorker looks at or changes the channel.
+ *
+ * When a command touches a channel or a user owned by another IRCWorker (a
+ * PRIVMSG, JOIN or PART on a channel, a PRIVMSG to a user, the QUIT and NICK
+ * announcements), the rest of the command is forwarded to that IRCWorker with
+ * post(), instead of locking anything. Commands for one channel all run on one
+ * thread in the order they were posted, so nothing else is needed to keep the
+ * channel consistent. With a single IRCWorker everything runs inline, just as
+ * before.
+ *
+ * Each IRC command has an associated method, found through the Commands
+ * table. All the methods take one argument, the ParsedLine of the line we've
+ * received from the 'net, already split into its command and parameters. Some
+ * methods don't even use it, because some commands don't have any arguments
+ * (MOTD, for example). A method checks it got the parameters it needs and
+ * answers with an error numeric if not.
  *
  * @author ultasun
  */
 public class IRCWorker implements Runnable {
 
+    // the most CHATHISTORY lines sent in one go, see chatHistory()
+    private static final int HISTORY_CHUNK = 20;
+    // the IRCv3 server-time format, always with milliseconds
+    private static final DateTimeFormatter SERVER_TIME = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+    // how long the list of nicks in one MONITOR reply line may get
+    private static final int MONITOR_LINE = 400;
+
     private final ChatLand cl;
     private Message inWork, outWork;
 
+    // reused for every line this IRCWorker handles
+    private final ParsedLine parsed;
+    private final Commands commands;
+
+    private final ConcurrentLinkedQueue<IRCHandler> ready;
+    private final ConcurrentLinkedQueue<Runnable> forwarded;
+    // true once the IRCWorker has found both queues empty and is about to
+    // park; whoever fills a queue next unparks it.
+    private final AtomicBoolean idle;
+    private volatile Thread thread;
+
+    // the shard: only ever touched from this IRCWorker's own thread
+    private final HashSet<IRCHandler> users;
+    private final Map<String, Channel> channels;
+    // the other nodes a channel PRIVMSG goes to, see privMsg()
+    private final HashSet<Link> relayTo;
 
     public IRCWorker(ChatLand cl) {
         this.cl = cl;
         inWork = null;
         outWork = null;
+        ready = new ConcurrentLinkedQueue<>();
+        forwarded = new ConcurrentLinkedQueue<>();
+        idle = new AtomicBoolean();
+        users = new HashSet<>();
+        channels = new HashMap<>();
+        relayTo = new HashSet<>();
+        parsed = new ParsedLine();
+        commands = new Commands();
+
+        // PRIVMSG sends a message to a user (or channel)
+        commands.register("PRIVMSG", this::privMsg);
+        // used once upon successful connection to the server
+        commands.register("WELCOMEMSG", this::welcomeMsg);
+        // JOIN a channel
+        commands.register("JOIN", this::join);
+        // view or set the topic
+        commands.register("TOPIC", this::topic);
+        // gives a detailed list of users in the channel
+        commands.register("WHO", this::who);
+        // gives a breif list of handles in the channel
+        commands.register("NAMES", this::names);
+        // respond to PING requests by the client.
+        commands.register("PING", this::userPing);
+        // answer to a PING from the Keepalive; the IRCHandler already noted
+        // that the client is alive when the line came in
+        commands.register("PONG", line -> {
+        });
+        // client wants to disconnect from the server
+        commands.register("QUIT", this::quit);
+        // client wants the Message Of The Day
+        commands.register("MOTD", this::motd);
+        // client wants to leave a channel
+        commands.register("PART", this::part);
+        // client wants to change their nick
+        commands.register("NICK", this::nick);
+        // client wants to be an IRC operator
+        commands.register("OPER", this::oper);
+        // an operator wants to see the Metrics
+        commands.register("STATS", this::stats);
+        // client wants to see what was said in a channel before
+        commands.register("CHATHISTORY", this::chatHistory);
+        // client wants to be told when some nicks come and go
+        commands.register("MONITOR", this::monitor);
     }
 
     @Override
     public void run() {
-        int i = 0;
+        thread = Thread.currentThread();
         try {
-            synchronized (this) {
-                while (!Thread.interrupted()) {
-                    inWork = findWork(); 
-                    if (inWork != null) {
-                        execMessage();
-                        
-                        /* 
-                        Every (11 * userCount) Messages, PING all users!
-                        The IRC RFC says the server may periodically PING all
-                        connected clients to see if any are worth dropping.
-                        
-                        Most clients will PING the server periodically in order
-                        to detect latency, along with periodic WHO's and others.
-                        */
-                        i++;
-                        if (i > (11 * cl.getRoster().size())) {
-                            i = 0;
-                            pingAllConnectedUsers();
-                        }
-                    } else {
-                        this.wait();
-                    }
+            while (!Thread.interrupted()) {
+                Runnable task = forwarded.poll();
+                if (task != null) {
+                    idle.set(false);
+                    runTask(task);
+                    continue;
+                }
+                inWork = findWork();
+                if (inWork != null) {
+                    execMessage();
                 }
             }
         } catch (InterruptedException e) {
-            System.out.println("ircworker> " + e.getLocalizedMessage());
+            Log.info("ircworker> " + e.getLocalizedMessage());
         }
     }
 
-    private void pingAllConnectedUsers() {
-        for (IRCHandler user : cl.getRoster()) {
-            user.insertOutputQueue(new Message(user,
-                    "PING :" + cl.getName()));
+    /**
+     * Puts an IRCHandler with new input in the ready queue. Called by the
+     * IRCHandler itself, only when it was not already in the queue. This used
+     * to be a notifyAll() on the IRCWorker; LockSupport does not pin the
+     * virtual threads of the "virtual" transport, and only the caller which
+     * finds the IRCWorker idle pays for waking it up.
+     *
+     * @param h the IRCHandler whose input queue is no longer empty
+     */
+    public void schedule(IRCHandler h) {
+        ready.add(h);
+        wakeUp();
+    }
+
+    /**
+     * Runs r on this IRCWorker's thread, after whatever was posted before it.
+     * This is how other IRCWorkers reach the users and channels of this shard.
+     *
+     * @param r the rest of a command, to be finished by this IRCWorker
+     */
+    public void post(Runnable r) {
+        forwarded.add(r);
+        wakeUp();
+    }
+
+    /**
+     * Makes h one of this shard's users. Called once h is registered.
+     *
+     * @param h a newly registered IRCHandler whose home this IRCWorker is
+     */
+    public void adopt(final IRCHandler h) {
+        post(() -> users.add(h));
+    }
+
+    /**
+     * Runs m on the calling thread, then everything it led to, until both
+     * queues are empty. This is the run() loop without the waiting, for an
+     * IRCWorker whose thread was never started, such as the ones the
+     * benchmarks in bench/ drive. Never call it on a started IRCWorker.
+     *
+     * @param m a Message to handle, or null just to empty the queues
+     */
+    public void process(Message m) {
+        inWork = m;
+        if (inWork != null) {
+            execMessage();
+        }
+        while (true) {
+            Runnable task = forwarded.poll();
+            if (task != null) {
+                runTask(task);
+                continue;
+            }
+            IRCHandler h = ready.poll();
+            if (h == null) {
+                break;
+            }
+            inWork = h.pollInputQueue();
+            if (inWork != null) {
+                execMessage();
+            }
+        }
+        inWork = null;
+    }
+
+    /**
+     * Counts this shard on its own thread: right away if called from it,
+     * otherwise after whatever was posted before.
+     *
+     * @return the Census, once it has been taken
+     */
+    public CompletableFuture<Census> census() {
+        final CompletableFuture<Census> result = new CompletableFuture<>();
+        Runnable r = () -> result.complete(takeCensus());
+        if (Thread.currentThread() == thread) {
+            r.run();
+        } else {
+            post(r);
+        }
+        return result;
+    }
+
+    private Census takeCensus() {
+        Census c = new Census();
+        c.users = users.size();
+        for (IRCHandler h : users) {
+            long bytes = h.getOutputQueueBytes();
+            c.inputMessages += h.getInputQueueDepth();
+            c.outputMessages += h.getOutputQueueDepth();
+            c.outputBytes += bytes;
+            c.maxOutputBytes = Math.max(c.maxOutputBytes, bytes);
+        }
+        c.channels = channels.size();
+        for (Channel channel : channels.values()) {
+            int size = channel.size();
+            c.members += size;
+            if (size > c.largestChannelMembers) {
+                c.largestChannel = channel.getName();
+                c.largestChannelMembers = size;
+            }
+        }
+        c.readyQueue = ready.size();
+        c.forwardedQueue = forwarded.size();
+        return c;
+    }
+
+    /**
+     * @return this IRCWorker's command table, with its timings
+     */
+    public Commands getCommands() {
+        return commands;
+    }
+
+    /**
+     * The channels owned by this shard. Only call this from this IRCWorker's
+     * own thread, ChatLand does so when asked about a channel.
+     *
+     * @return the Map from upper case channel name to Channel
+     */
+    public Map<String, Channel> getChannels() {
+        return channels;
+    }
+
+    private void wakeUp() {
+        if (idle.get() && idle.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
         }
     }
 
     private Message findWork() throws InterruptedException {
-        for (IRCHandler h : cl.getRoster()) {
-            if (!h.inputQueueEmpty()) {
-                // h.removeInputQueue() will wait() if empty
-                return h.removeInputQueue();
+        IRCHandler h = ready.poll();
+        if (h == null) {
+            // say we are idle, then look once more before parking, so a
+            // schedule() or post() which did not see idle yet is not missed
+            if (!idle.get()) {
+                idle.set(true);
+            } else {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("interrupted while idle");
+                }
             }
+            return null;
         }
+        idle.set(false);
+        return h.pollInputQueue();
+    }
 
-        return null;
+    /**
+     * Runs r on the IRCWorker which owns the channel: right away if that is
+     * us, otherwise by posting it.
+     */
+    private void onChannel(String channel, Runnable r) {
+        onWorker(cl.getChannelOwner(channel), r);
+    }
+
+    private void onWorker(IRCWorker w, Runnable r) {
+        if (w == this) {
+            r.run();
+        } else {
+            w.post(r);
+        }
+    }
+
+    /**
+     * Sends a line to who and to everybody sharing a channel with who, each
+     * of them once, instead of to the whole server. Every channel is asked on
+     * the shard which owns it, and those shards share the set of users told
+     * so far. If leaving, who is also taken out of each channel.
+     */
+    private void tellCoMembers(final IRCHandler who, String line,
+            final boolean leaving) {
+        final Message m = Message.shared(line);
+        final Set<IRCHandler> told = ConcurrentHashMap.newKeySet();
+        told.add(who);
+        who.insertOutputQueue(m);
+        for (final String channel : who.getChannels()) {
+            onChannel(channel, () -> {
+                if (leaving) {
+                    cl.partChannel(channel, who);
+                } else if (cl.channelExists(channel)) {
+                    cl.getChannel(channel).renamed(); // a NICK
+                }
+                for (IRCHandler h : cl.getChannelRoster(channel)) {
+                    if (told.add(h)) {
+                        h.insertOutputQueue(m);
+                    }
+                }
+            });
+        }
+        if (leaving) {
+            who.getChannels().clear();
+        }
     }
 
     /**
      * Figure out which command the user wants to execute, and do so.
      */
+    /**
+     * Runs the command in inWork. A command which throws is logged and
+     * forgotten: every user and channel of this shard depends on the loop
+     * going on.
+     */
     private void execMessage() {
-        String userLine = inWork.getLine();
         outWork = null;
+        if (!parsed.parse(inWork.getLine())) {
+            return;
+        }
+        try {
+            commands.exec(parsed);
+        } catch (RuntimeException e) {
+            failed(inWork.getHandle() + " " + parsed.getCommand(), e);
+        }
+    }
 
-        // PRIVMSG sends a message to a user (or channel)
-        if (userLine.toUpperCase().startsWith("PRIVMSG")) {
-            privMsg(userLine);
-        } // used once upon successful connection to the server
-        else if (userLine.toUpperCase().startsWith("WELCOMEMSG")) {
-            welcomeMsg(userLine);
-        } // JOIN a channel
-        else if (userLine.toUpperCase().startsWith("JOIN")) {
-            join(userLine);
-        } // view or set the topic
-        else if (userLine.toUpperCase().startsWith("TOPIC")) {
-            topic(userLine);
-        } // gives a detailed list of users in the channel
-        else if (userLine.toUpperCase().startsWith("WHO")) {
-            who(userLine);
-        } // gives a breif list of handles in the channel
-        else if (userLine.toUpperCase().startsWith("NAMES")) {
-            names(userLine);
-        } // respond to PING requests by the client.
-        else if (userLine.toUpperCase().startsWith("PING")) {
-            userPing(userLine);
-        } // client wants to disconnect from the server
-        else if (userLine.toUpperCase().startsWith("QUIT")) {
-            quit(userLine);
-        } // client wants the Message Of The Day
-        else if (userLine.toUpperCase().startsWith("MOTD")) {
-            motd(userLine);
-        } // client wants to leave a channel
-        else if (userLine.toUpperCase().startsWith("PART")) {
-            part(userLine);
-        } // client wants to change their nick
-        else if (userLine.toUpperCase().startsWith("NICK")) {
-            nick(userLine);
-        }
-    }
-
-    private void userPing(String userLine) {
-        String outline = ":" + cl.getName() + " PONG " + cl.getName() + " "
-                + userLine.substring(userLine.indexOf(" ") + 1);
+    /**
+     * Runs something posted to this IRCWorker, and like execMessage() keeps
+     * going if it throws.
+     */
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            failed("a posted task", e);
+        }
+    }
+
+    private static void failed(String what, RuntimeException e) {
+        StackTraceElement[] where = e.getStackTrace();
+        Log.error("ircworker> " + what + " failed: " + e
+                + (where.length > 0 ? " at " + where[0] : ""));
+    }
+
+    private void reply(String numericAndText) {
+        outWork = new Message(inWork.getIRCHandler(), ":" + cl.getName() + " "
+                + numericAndText);
+        outWork.getIRCHandler().insertOutputQueue(outWork);
+    }
+
+    private static void fail(IRCHandler h, String server, String code,
+            String context, String text) {
+        h.insertOutputQueue(new Message(h, server + "FAIL CHATHISTORY " + code
+                + context + " :" + text));
+    }
+
+    private void needMoreParams(ParsedLine line) {
+        reply("461 " + inWork.getHandle() + " " + line.getCommand()
+                + " :Not enough parameters");
+    }
+
+    /**
+     * Adds a line sent to a channel to its History. Only on the channel's
+     * owner.
+     */
+    private void remember(String channel, Message m) {
+        Channel c = cl.getChannel(channel);
+        if (c != null) {
+            c.getHistory().add(System.currentTimeMillis(), m.getFrame());
+        }
+    }
+
+    private boolean isChannel(ParsedLine line, int param) {
+        return line.firstCharOfParam(param) == '#';
+    }
+
+    private void userPing(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            reply("409 " + inWork.getHandle() + " :No origin specified");
+            return;
+        }
+        String outline = ":" + cl.getName() + " PONG " + cl.getName() + " :"
+                + line.getParam(0);
         outWork = new Message(inWork.getIRCHandler(), outline);
         outWork.getIRCHandler().insertOutputQueue(outWork);
     }
 
-    private void privMsg(String userLine) {
-        String output;
+    private void privMsg(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            reply("411 " + inWork.getHandle()
+                    + " :No recipient given (PRIVMSG)");
+            return;
+        }
+        if (line.getParamCount() < 2) {
+            reply("412 " + inWork.getHandle() + " :No text to send");
+            return;
+        }
+        final IRCHandler from = inWork.getIRCHandler();
         // who are we sending the message to?
-        String tohandle = userLine.substring(8, userLine.indexOf(" ", 8));
+        final String tohandle = line.getParam(0);
         // what is the message?
-        String message = userLine.substring(userLine.indexOf(":") + 1);
+        String message = line.getParam(1);
 
         // if the private message is going to a channel
-        if (tohandle.contains("#")) {
-            output = ":" + inWork.getIRCHandler().getHostLine() + " PRIVMSG "
-                    + tohandle + " :" + message;
+        if (isChannel(line, 0)) {
+            // encoded once here, every member gets the same bytes
+            final Message output = Message.chatter(":" + from.getHostLine()
+                    + " PRIVMSG " + tohandle + " :" + message);
             // send the message to everybody in that channel
-            for (IRCHandler h : cl.getChannelRoster(tohandle)) {
-                // don't send it to ourselves though!
-                if (h.getHandle().equalsIgnoreCase(inWork.getHandle())) {
-                    continue;
+            final boolean relay = !from.isRemote();
+            onChannel(tohandle, () -> {
+                remember(tohandle, output);
+                List<IRCHandler> members = cl.getChannelRoster(tohandle);
+                for (IRCHandler h : members) {
+                    // don't send it to ourselves though!
+                    if (h.equals(from)) {
+                        continue;
+                    }
+                    if (relay && h.isRemote()) {
+                        relayTo.add(Cluster.linkOf(h));
+                    }
+                    h.insertOutputQueue(output);
                 }
-                outWork = new Message(h, output);
-                outWork.getIRCHandler().insertOutputQueue(outWork);
-            }
+                // each node with members gets it once, and tells them
+                for (Link l : relayTo) {
+                    l.send(from, "PRIVMSG " + tohandle + " :" + message);
+                }
+                relayTo.clear();
+                // talking to a big channel is more work than to a small one
+                from.getFloodControl().charge(
+                        members.size() / FloodControl.FANOUT_PER_TOKEN);
+            });
         } // if the private message is going to a single user
         else {
             // find the user that we're trying to send the message to
-            for (IRCHandler h : cl.getRoster()) {
-                if (h.getHandle().equalsIgnoreCase(tohandle)) {
-                    output = ":" + inWork.getHandle() + " PRIVMSG " + tohandle
-                            + " :" + message;
-                    outWork = new Message(h, output);
-                    outWork.getIRCHandler().insertOutputQueue(outWork);
-                    return;
-                }
+            final IRCHandler h = cl.findHandle(tohandle);
+            if (h == null) {
+                reply("401 " + inWork.getHandle() + " " + tohandle
+                        + " :No such nick/channel");
+                return;
             }
+            if (h.isRemote()) {
+                cl.getCluster().sendTo(from, h,
+                        "PRIVMSG " + h.getHandle() + " :" + message);
+                return;
+            }
+            final String output = ":" + from.getHandle() + " PRIVMSG "
+                    + tohandle + " :" + message;
+            onWorker(h.getIRCWorkerToNotify(),
+                    () -> h.insertOutputQueue(new Message(h, output)));
         }
     }
 
-    private void topic(String userLine) {
-        // lets try using a Scanner instead of using substrings all the time!
-        Scanner scan = new Scanner(userLine);
-        scan.next(); // skip the "command"
-        String channel = scan.next();
-        String newtopic = "";
-        String outline;
-        while (scan.hasNext()) {
-            newtopic += scan.next() + " ";
+    private void topic(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
         }
+        final String channel = line.getParam(0);
+        final IRCHandler from = inWork.getIRCHandler();
+        final String handle = from.getHandle();
+        final String server = ":" + cl.getName() + " ";
 
         // if we just want to view the topic
-        if (newtopic.equals("")) {
-            outline = ":" + cl.getName() + " 332 " + inWork.getHandle()
-                    + " " + channel + " " + cl.getChannelTopic(channel);
-            outWork = new Message(inWork.getIRCHandler(), outline);
-            outWork.getIRCHandler().insertOutputQueue(outWork);
+        if (line.getParamCount() < 2) {
+            onChannel(channel, () -> {
+                String outline;
+                if (!cl.channelExists(channel)) {
+                    outline = server + "403 " + handle + " " + channel
+                            + " :No such channel";
+                } else if (cl.getChannelTopic(channel).isEmpty()) {
+                    outline = server + "331 " + handle + " " + channel
+                            + " :No topic is set";
+                } else {
+                    outline = server + "332 " + handle + " " + channel
+                            + " :" + cl.getChannelTopic(channel);
+                }
+                from.insertOutputQueue(new Message(from, outline));
+            });
         } // if we want to set the topic
         else {
-            cl.setChannelTopic(channel, newtopic);
-            outline = ":" + inWork.getIRCHandler().getHostLine()
-                    + " TOPIC " + channel + " " + newtopic;
-            for (IRCHandler h : cl.getChannelRoster(channel)) {
-                outWork = new Message(h, outline);
-                outWork.getIRCHandler().insertOutputQueue(outWork);
-            }
+            final String newtopic = line.getParam(1);
+            final Message outline = Message.shared(":" + from.getHostLine()
+                    + " TOPIC " + channel + " :" + newtopic);
+            cl.getCluster().tell(from, "TOPIC " + channel + " :" + newtopic);
+            onChannel(channel, () -> {
+                if (!cl.channelExists(channel)) {
+                    from.insertOutputQueue(new Message(from, server + "403 "
+                            + handle + " " + channel + " :No such channel"));
+                    return;
+                }
+                cl.setChannelTopic(channel, newtopic);
+                remember(channel, outline);
+                for (IRCHandler h : cl.getChannelRoster(channel)) {
+                    h.insertOutputQueue(outline);
+                }
+            });
         }
     }
 
-    private void welcomeMsg(String userLine) {
+    private void welcomeMsg(ParsedLine line) {
         String output = ":" + cl.getName() + " 001 " + inWork.getHandle()
                 + " :Welcome to the " + cl.getName() + " IRC server, "
                 + inWork.getHandle() + "!";
+        output += "\n:" + cl.getName() + " 005 " + inWork.getHandle()
+                + " MONITOR=" + Settings.MONITOR_MAX
+                + " :are supported by this server";
         outWork = new Message(inWork.getIRCHandler(), output);
         outWork.getIRCHandler().insertOutputQueue(outWork);
     }
 
-    private void motd(String userLine) {
+    private void motd(ParsedLine line) {
         String output = ":" + cl.getName() + " 375 " + inWork.getHandle()
                 + " :- " + cl.getName() + " Message Of The Day -\n";
         output += ":" + cl.getName() + " 372 " + inWork.getHandle()
@@ -219,111 +589,162 @@ public class IRCWorker implements Runnable {
         outWork.getIRCHandler().insertOutputQueue(outWork);
     }
 
-    private void join(String userLine) {
-        int findPound = userLine.indexOf("#");
-        String channel = userLine.substring(findPound);
-        channel = channel.trim();
+    /**
+     * JOIN takes a comma separated list of channels.
+     *
+     * @param line
+     */
+    private void join(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
+        }
+        for (String channel : line.getParam(0).split(",")) {
+            join(channel);
+        }
+    }
 
-        cl.joinChannel(channel, inWork.getIRCHandler());
+    private void join(final String channel) {
+        if (!channel.startsWith("#")) {
+            reply("403 " + inWork.getHandle() + " " + channel
+                    + " :No such channel");
+            return;
+        }
+        final IRCHandler joiner = inWork.getIRCHandler();
 
-        String output = ":" + inWork.getIRCHandler().getHostLine()
-                + " JOIN " + ":" + channel;
+        final Message output = Message.shared(":" + joiner.getHostLine()
+                + " JOIN " + ":" + channel);
 
-        for (IRCHandler h : cl.getChannelRoster(channel)) {
-            if (h.equals(inWork.getIRCHandler())) {
-                outWork = new Message(h, output);
-                h.insertInputQueue(new Message(h, "NAMES " + channel));
-                h.insertInputQueue(new Message(h, "TOPIC " + channel));
-            } else {
-                outWork = new Message(h, output);
+        joiner.joined(channel);
+        cl.getCluster().tell(joiner, "JOIN " + channel);
+        onChannel(channel, () -> {
+            if (!cl.joinChannel(channel, joiner)) {
+                return; // already there
             }
-            outWork.getIRCHandler().insertOutputQueue(outWork);
-        }
+            remember(channel, output);
+            for (IRCHandler h : cl.getChannelRoster(channel)) {
+                if (h.equals(joiner) && !h.isRemote()) {
+                    h.insertInputQueue(new Message(h, "NAMES " + channel));
+                    h.insertInputQueue(new Message(h, "TOPIC " + channel));
+                }
+                h.insertOutputQueue(output);
+            }
+        });
     }
 
-    private void part(String userLine) {
-        int findpound = userLine.indexOf("#");
-        System.out.println(findpound);
-        String channel = userLine.substring(findpound);
-        channel = channel.trim();
-        String output = ":" + inWork.getIRCHandler().getHostLine()
-                + " PART " + channel;
-        for (IRCHandler h : cl.getChannelRoster(channel)) {
-            outWork = new Message(h, output);
-            outWork.getIRCHandler().insertOutputQueue(outWork);
+    /**
+     * PART takes a comma separated list of channels.
+     *
+     * @param line
+     */
+    private void part(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
+        }
+        for (String channel : line.getParam(0).split(",")) {
+            part(channel);
         }
-        cl.partChannel(channel, inWork.getIRCHandler());
+    }
 
+    private void part(final String channel) {
+        final IRCHandler parter = inWork.getIRCHandler();
+        final Message output = Message.shared(":" + parter.getHostLine()
+                + " PART " + channel);
+        parter.parted(channel);
+        cl.getCluster().tell(parter, "PART " + channel);
+        onChannel(channel, () -> {
+            if (!cl.partChannel(channel, parter)) {
+                return; // wasn't there
+            }
+            parter.insertOutputQueue(output);
+            for (IRCHandler h : cl.getChannelRoster(channel)) {
+                h.insertOutputQueue(output);
+            }
+        });
     }
 
     /**
-     * Give a brief list of usernames
+     * Give a brief list of usernames, as many 353 lines as it takes. The
+     * Channel keeps the handles cut up already, see Channel.getNames().
      *
-     * @param userLine
+     * @param line
      */
-    private void names(String userLine) {
+    private void names(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
+        }
         // find the channel name
-        int findpound = userLine.indexOf("#");
-        String channel = userLine.substring(findpound);
-        channel = channel.trim();
-        String listing = "";
-        ArrayList<IRCHandler> raster = cl.getChannelRoster(channel);
-        for (IRCHandler h : raster) {
-            listing += h.getHandle() + " ";
-        }
-        String output = ":" + cl.getName() + " 353 " + inWork.getHandle()
-                + " = " + channel + " :" + listing;
-        output += "\n:" + cl.getName() + " 366 " + inWork.getHandle() + " "
-                + channel + " :End of /NAMES list";
-
-        outWork = new Message(inWork.getIRCHandler(), output);
-        outWork.getIRCHandler().insertOutputQueue(outWork);
+        final String channel = line.getParam(0);
+        final IRCHandler asker = inWork.getIRCHandler();
+        final String handle = asker.getHandle();
+        onChannel(channel, () -> {
+            Channel c = cl.getChannel(channel);
+            if (c != null) {
+                String prefix = ":" + cl.getName() + " 353 " + handle
+                        + " = " + channel + " :";
+                for (String names : c.getNames(prefix)) {
+                    asker.insertOutputQueue(new Message(asker,
+                            prefix + names));
+                }
+            }
+            asker.insertOutputQueue(new Message(asker, ":" + cl.getName()
+                    + " 366 " + handle + " " + channel
+                    + " :End of /NAMES list"));
+        });
     }
 
     /**
-     * Gets a detailed list of users in a channel
+     * Gets a detailed list of users in a channel, a 352 line each. The
+     * Channel keeps the ends of those lines, see Channel.getWho().
      *
-     * @param userLine
+     * @param line
      */
-    private void who(String userLine) {
-        String output = "";
-        int findpound = userLine.indexOf("#");
-        String channel = userLine.substring(findpound);
-        channel = channel.trim();
-        ArrayList<IRCHandler> raster = cl.getChannelRoster(channel);
-        for (IRCHandler h : raster) {
-            output += ":" + cl.getName() + " 352 " + inWork.getHandle()
-                    + " " + channel + " " + h.getUserName() + " "
-                    + h.getSocket().getInetAddress().getHostName()
-                    + " " + cl.getName() + " " + h.getHandle() + " H :0 "
-                    + h.getRealName() + "\n";
-        }
-        output += ":" + cl.getName() + " 315 " + inWork.getHandle() + " "
-                + channel + " :End of /WHO list";
-        outWork = new Message(inWork.getIRCHandler(), output);
-        outWork.getIRCHandler().insertOutputQueue(outWork);
+    private void who(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
+        }
+        final String channel = line.getParam(0);
+        final IRCHandler asker = inWork.getIRCHandler();
+        final String handle = asker.getHandle();
+        onChannel(channel, () -> {
+            Channel c = cl.getChannel(channel);
+            if (c != null) {
+                String prefix = ":" + cl.getName() + " 352 " + handle + " "
+                        + channel + " ";
+                for (String member : c.getWho(cl.getName())) {
+                    asker.insertOutputQueue(new Message(asker,
+                            prefix + member));
+                }
+            }
+            asker.insertOutputQueue(new Message(asker, ":" + cl.getName()
+                    + " 315 " + handle + " " + channel
+                    + " :End of /WHO list"));
+        });
     }
 
     /**
      * Disconnect from the server
      *
-     * @param userLine
+     * @param line
      */
-    private void quit(String userLine) {
+    private void quit(ParsedLine line) {
         String quitline = ":" + inWork.getIRCHandler().getHostLine()
-                + " QUIT :";
-        if (userLine.indexOf(":") > 0) {
-            quitline += userLine.substring(userLine.indexOf(":") + 1);
-        }
+                + " QUIT :" + line.getParam(0, "");
 
-        // just tell everybody on the server that the user quit.  
-        // this is not how IRC is supposed to work, but it will work.  Only
-        // supposed to send to users we share a channel with.
-        // basically, how do we find out all the channels a user is in?
-        for (IRCHandler h : cl.getRoster()) {
-            h.insertOutputQueue(new Message(h, quitline));
-        }
         IRCHandler die = cl.removeHandle(inWork.getIRCHandler());
+        if (die == null) {
+            // already gone, e.g. a QUIT followed by the socket closing
+            return;
+        }
+        cl.getCluster().tell(die, "QUIT :" + line.getParam(0, ""));
+        cl.getMonitor().offline(die.getHandle());
+        cl.getMonitor().clear(die);
+        // tell the users we share a channel with, and leave the channels
+        tellCoMembers(die, quitline, true);
+        users.remove(die);
         die.quit();
         inWork = null;
     }
@@ -331,26 +752,337 @@ public class IRCWorker implements Runnable {
     /**
      * Changes the user's handle
      *
-     * @param userLine line received from the client
+     * @param line line received from the client
      */
-    private void nick(String userLine) {
-        Scanner input = new Scanner(userLine);
-        input.next(); // skip the "command"
-        String newnick = input.next();
-
-        while (newnick.contains(":")) {
-            newnick = newnick.replaceAll(":", "");
+    private void nick(ParsedLine line) {
+        // some clients like to send a : before the new nickname, some
+        // don't. The ParsedLine takes care of that.
+        String newnick = line.getParam(0, "");
+        if (newnick.isEmpty()) {
+            reply("431 " + inWork.getHandle() + " :No nickname given");
+            return;
         }
-        System.out.println("new nick " + newnick);
+        if (Log.DEBUG) {
+            Log.debug(inWork.getHandle() + " new nick " + newnick);
+        }
+        String oldnick = inWork.getHandle();
         String changenick = ":" + inWork.getIRCHandler().getHostLine()
                 + " NICK " + ":" + newnick;
-        // inform all connections that this nick is changing
-        for (IRCHandler h : cl.getRoster()) {
-            outWork = new Message(h, changenick);
-            outWork.getIRCHandler().insertOutputQueue(outWork);
+        // change the nick in our records first, somebody may have it already
+        if (!cl.setHandle(newnick, inWork.getIRCHandler())) {
+            cl.getCluster().collided(inWork.getIRCHandler());
+            reply("433 " + inWork.getHandle() + " " + newnick
+                    + " :Nickname is already in use");
+            return;
+        }
+        cl.getCluster().tell(inWork.getIRCHandler(), "NICK " + newnick);
+        if (!ChatLand.foldHandle(oldnick).equals(
+                ChatLand.foldHandle(newnick))) {
+            cl.getMonitor().offline(oldnick);
+            cl.getMonitor().online(inWork.getIRCHandler());
+        }
+        // inform everybody we share a channel with that this nick is changing
+        tellCoMembers(inWork.getIRCHandler(), changenick, false);
+    }
+
+    /**
+     * OPER name password: the password is Settings.OPER_PASSWORD, whatever
+     * the name. With no password set nobody can be an operator.
+     *
+     * @param line line received from the client
+     */
+    private void oper(ParsedLine line) {
+        if (line.getParamCount() < 2) {
+            needMoreParams(line);
+            return;
+        }
+        if (Settings.OPER_PASSWORD.isEmpty()) {
+            reply("491 " + inWork.getHandle() + " :No O-lines for your host");
+            return;
+        }
+        // compared in constant time, so the time taken gives nothing away
+        if (!MessageDigest.isEqual(
+                line.getParam(1).getBytes(StandardCharsets.UTF_8),
+                Settings.OPER_PASSWORD.getBytes(StandardCharsets.UTF_8))) {
+            Log.warn(inWork.getHandle() + " failed OPER");
+            reply("464 " + inWork.getHandle() + " :Password incorrect");
+            return;
+        }
+        inWork.getIRCHandler().setOperator(true);
+        Log.info(inWork.getHandle() + " is an operator");
+        reply("381 " + inWork.getHandle() + " :You are now an IRC operator");
+    }
+
+    /**
+     * STATS, for operators only. "STATS m" lists the commands, how often they
+     * ran and how long they took, "STATS u" is the uptime, and anything else
+     * gives all of the Metrics, a line each.
+     *
+     * @param line line received from the client
+     */
+    private void stats(ParsedLine line) {
+        final IRCHandler asker = inWork.getIRCHandler();
+        final String handle = asker.getHandle();
+        if (!asker.isOperator()) {
+            reply("481 " + handle
+                    + " :Permission Denied- You're not an IRC operator");
+            return;
+        }
+        final String query = line.getParam(0, "*");
+        final String server = ":" + cl.getName() + " ";
+        final String end = server + "219 " + handle + " " + query
+                + " :End of /STATS report";
+        if (query.equalsIgnoreCase("m")) {
+            for (Map.Entry<String, LatencyHistogram> e
+                    : Metrics.commandTimings(cl).entrySet()) {
+                LatencyHistogram h = e.getValue();
+                reply("212 " + handle + " " + e.getKey() + " "
+                        + h.getCount() + " :p50 " + h.percentile(0.5) / 1000
+                        + "us p99 " + h.percentile(0.99) / 1000 + "us");
+            }
+        } else if (query.equalsIgnoreCase("u")) {
+            long up = Metrics.getUptimeSeconds();
+            reply("242 " + handle + " :Server Up " + up / 86400 + " days "
+                    + String.format("%d:%02d:%02d",
+                            up / 3600 % 24, up / 60 % 60, up % 60));
+        } else {
+            // every shard counts itself, the last one to finish answers,
+            // a Message per line like NAMES
+            Metrics.census(cl).thenAccept(shards -> {
+                for (String metric : Metrics.render(cl, shards).split("\n")) {
+                    if (!metric.startsWith("#")) {
+                        asker.insertOutputQueue(new Message(asker,
+                                server + "249 " + handle + " :" + metric));
+                    }
+                }
+                asker.insertOutputQueue(new Message(asker, end));
+            });
+            return;
+        }
+        asker.insertOutputQueue(new Message(asker, end));
+    }
+
+    /**
+     * CHATHISTORY LATEST|BEFORE|AFTER channel * | timestamp=... | msgid=...
+     * limit, like the IRCv3 command. The lines are read from the channel's
+     * History by its owner and sent HISTORY_CHUNK at a time. If there are
+     * more, a CHATHISTORY AFTER for the rest goes in the asking user's input
+     * queue, so a long replay takes turns with everybody else's input instead
+     * of holding up the IRCWorker.
+     *
+     * @param line line received from the client
+     */
+    private void chatHistory(ParsedLine line) {
+        final IRCHandler who = inWork.getIRCHandler();
+        final String server = ":" + cl.getName() + " ";
+        if (line.getParamCount() < 4) {
+            fail(who, server, "NEED_MORE_PARAMS", "",
+                    "CHATHISTORY LATEST|BEFORE|AFTER <channel> "
+                    + "<*|timestamp=|msgid=> <limit>");
+            return;
+        }
+        final String sub = line.getParam(0).toUpperCase();
+        final String channel = line.getParam(1);
+        final String point = line.getParam(2);
+        final String context = " " + sub + " " + channel;
+        final boolean after = sub.equals("AFTER");
+        if (!after && !sub.equals("LATEST") && !sub.equals("BEFORE")) {
+            fail(who, server, "INVALID_PARAMS", " " + sub,
+                    "Only LATEST, BEFORE and AFTER are known");
+            return;
+        }
+        final int limit;
+        final long at;
+        final boolean byTime = point.startsWith("timestamp=");
+        final boolean all = point.equals("*") && sub.equals("LATEST");
+        try {
+            limit = Math.min(Integer.parseInt(line.getParam(3)),
+                    Settings.HISTORY_MAX_LINES);
+            if (all) {
+                at = 0;
+            } else if (byTime) {
+                String when = point.substring("timestamp=".length());
+                at = when.indexOf('T') > 0
+                        ? Instant.parse(when).toEpochMilli()
+                        : Long.parseLong(when);
+            } else if (point.startsWith("msgid=")) {
+                at = Long.parseLong(point.substring("msgid=".length()));
+            } else {
+                throw new IllegalArgumentException(point);
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            fail(who, server, "INVALID_PARAMS", context,
+                    "Bad limit, timestamp or msgid");
+            return;
+        }
+        if (limit <= 0) {
+            return;
+        }
+        onChannel(channel, () -> {
+            Channel c = cl.getChannel(channel);
+            if (c == null || !c.contains(who)) {
+                fail(who, server, "INVALID_TARGET", context,
+                        "You are not on that channel");
+                return;
+            }
+            History history = c.getHistory();
+            long first = history.first(), end = history.end();
+            // where the point is: the first line after it, and the first
+            // line at or after it. Both are within [first, end], whatever the
+            // client asked for, so nothing below can overflow.
+            long next, here;
+            if (all) {
+                next = here = end;
+            } else if (byTime) {
+                here = history.seek(at);
+                next = at == Long.MAX_VALUE ? end : history.seek(at + 1);
+            } else {
+                long id = Math.min(at, end);
+                here = Math.max(first, id);
+                next = Math.max(first, Math.min(end, id + 1));
+            }
+            // the lines wanted are from up to (not including) to
+            long from, to;
+            if (after) {
+                from = next;
+                to = from + Math.min(limit, end - from);
+            } else if (sub.equals("BEFORE")) {
+                to = here;
+                from = Math.max(first, to - limit);
+            } else { // LATEST, since a point or not
+                to = end;
+                from = Math.max(all ? first : next, to - limit);
+            }
+            long stop = Math.min(to, from + HISTORY_CHUNK);
+            history.read(from, stop, (msgid, millis, frame) ->
+                    who.insertOutputQueue(Message.replayed(
+                            tagged(msgid, millis, frame))));
+            if (stop < to && !who.isGone()) {
+                who.insertInputQueue(new Message(who, "CHATHISTORY AFTER "
+                        + channel + " msgid=" + (stop - 1) + " "
+                        + (to - stop)));
+            }
+        });
+    }
+
+    /**
+     * Puts the IRCv3 msgid and time tags in front of a replayed line, so the
+     * client can ask for the lines BEFORE or AFTER it.
+     */
+    private static byte[] tagged(long msgid, long millis, byte[] frame) {
+        byte[] tags = ("@msgid=" + msgid + ";time="
+                + SERVER_TIME.format(Instant.ofEpochMilli(millis)) + " ")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] line = Arrays.copyOf(tags, tags.length + frame.length);
+        System.arraycopy(frame, 0, line, tags.length, frame.length);
+        return line;
+    }
+
+    /**
+     * MONITOR + nick,nick | - nick,nick | C | L | S, like the IRCv3 command.
+     * The Monitor does the watching, and tells the watchers when a nick they
+     * watch comes or goes (730 and 731). Here the watchers are only answered
+     * about where things stand right now.
+     *
+     * @param line line received from the client
+     */
+    private void monitor(ParsedLine line) {
+        if (line.getParamCount() < 1) {
+            needMoreParams(line);
+            return;
+        }
+        IRCHandler who = inWork.getIRCHandler();
+        Monitor monitor = cl.getMonitor();
+        String what = line.getParam(0).toUpperCase();
+        List<String> targets = new ArrayList<>();
+        if (what.equals("+") || what.equals("-")) {
+            if (line.getParamCount() < 2) {
+                needMoreParams(line);
+                return;
+            }
+            for (String nick : line.getParam(1).split(",")) {
+                if (!nick.isEmpty()) {
+                    targets.add(nick);
+                }
+            }
+        }
+        switch (what) {
+            case "+":
+                List<String> added = new ArrayList<>();
+                for (int i = 0; i < targets.size(); i++) {
+                    if (!monitor.watch(who, targets.get(i))) {
+                        reply("734 " + who.getHandle() + " "
+                                + Settings.MONITOR_MAX + " "
+                                + String.join(",", targets.subList(i,
+                                        targets.size()))
+                                + " :Monitor list is full.");
+                        break;
+                    }
+                    added.add(targets.get(i));
+                }
+                monitorStatus(who, added);
+                break;
+            case "-":
+                for (String nick : targets) {
+                    monitor.unwatch(who, nick);
+                }
+                break;
+            case "C":
+                monitor.clear(who);
+                break;
+            case "L":
+                replyList(who, "732", new ArrayList<>(
+                        who.getMonitored().values()));
+                reply("733 " + who.getHandle() + " :End of MONITOR list");
+                break;
+            case "S":
+                monitorStatus(who, new ArrayList<>(
+                        who.getMonitored().values()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Says which of nicks are online (730, with their host lines) and which
+     * are not (731).
+     */
+    private void monitorStatus(IRCHandler who, List<String> nicks) {
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (String nick : nicks) {
+            IRCHandler h = cl.findHandle(nick);
+            if (h != null) {
+                online.add(h.getHostLine());
+            } else {
+                offline.add(nick);
+            }
+        }
+        replyList(who, "730", online);
+        replyList(who, "731", offline);
+    }
+
+    /**
+     * Replies with items separated by commas, in as many lines as it takes.
+     */
+    private void replyList(IRCHandler who, String numeric,
+            List<String> items) {
+        String start = numeric + " " + who.getHandle() + " :";
+        StringBuilder list = new StringBuilder();
+        for (String item : items) {
+            if (list.length() > 0
+                    && list.length() + 1 + item.length() > MONITOR_LINE) {
+                reply(start + list);
+                list.setLength(0);
+            }
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(item);
         }
-        // now actually change the nick in our records
-        while (!cl.setHandle(newnick, inWork.getIRCHandler())) {
+        if (list.length() > 0) {
+            reply(start + list);
         }
     }
 }
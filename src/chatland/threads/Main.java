@@ -1,16 +1,37 @@
 package chatland.threads;
 
+import chatland.Admission;
 import chatland.ChatLand;
+import chatland.HostCache;
 import chatland.IRCHandler;
+import chatland.LineDecoder;
+import chatland.Log;
+import chatland.Message;
+import chatland.Metrics;
+import chatland.Registration;
+import chatland.Settings;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Multi threaded IRC server implementation.
  *
+ * The transport is picked at startup with -Dchatland.transport (see Settings).
+ * The default "threads" transport gives every client a ClientInput and a
+ * ClientOutput thread, "virtual" makes those virtual threads, and "nio" spreads
+ * the clients over a few SelectorLoops.
+ *
+ * Accepting never waits for a client to register: that happens on another
+ * thread or on a SelectorLoop, under the limits kept by Admission.
+ *
  * @author ultasun
  */
 public class Main {
@@ -21,45 +42,158 @@ public class Main {
         cl = new ChatLand("irc.chatland.cl",
                 "Remember to drink your Ovaltine!");
         cl.start();
-        ServerSocket ss = new ServerSocket(7776);
-        System.out.println("Server started...waiting for clients...");
+        Metrics.start(cl);
+        if (Settings.useNIO()) {
+            serveSelectorLoops();
+        } else {
+            serveThreads();
+        }
+    }
+
+    /**
+     * Accepts connections, and has each one register on a thread of its own
+     * (a virtual thread with the "virtual" transport), so a client which is
+     * slow to send NICK and USER only holds up itself. Admission keeps the
+     * number of those threads down.
+     */
+    private static void serveThreads() throws IOException {
+        ServerSocket ss = new ServerSocket(Settings.PORT);
+        Log.info("Server started" + (Threads.virtual() ? " (virtual threads)"
+                : "") + "...waiting for clients...");
         while (true) {
-            Socket s = ss.accept();
-            System.out.println("Client connected =>\n" + s);
-            registerUser(s);
+            awaitRoom();
+            final Socket s = ss.accept();
+            final long acceptedAt = System.nanoTime();
+            Metrics.accepted();
+            Log.info("Client connected => " + s);
+            if (!Admission.admit(s.getInetAddress())) {
+                refuse(s);
+                continue;
+            }
+            final Registration r = new Registration(s.getInetAddress(),
+                    () -> closeQuietly(s));
+            Threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    registerUser(s, r, acceptedAt);
+                }
+            }, "Register-" + s.getPort()).start();
         }
     }
 
-    private static void registerUser(Socket s) throws IOException {
-        Scanner in = new Scanner(s.getInputStream());
-        PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+    private static void awaitRoom() throws IOException {
+        try {
+            Admission.awaitRoom();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while full");
+        }
+    }
 
-        // connect the new user
-        out.println("NOTICE AUTH :*** Connected, your socket info: ");
-        out.println("NOTICE AUTH :*** " + s);
-        String handle = null;
-        String username = null;
-        String realname = null;
-        String line;
-        while (handle == null
-                || username == null || realname == null) {
-            line = in.nextLine();
-            System.out.println(line);
-            if (line.contains("NICK ")) {
-                handle = line.substring(5);
-            } else if (line.contains("USER ")) {
-                username = line.substring(5, line.indexOf(" ", 5));
-                realname = line.substring(line.indexOf(":") + 1);
-            }
+    /**
+     * Turns away a connection Admission did not let in.
+     */
+    private static void refuse(Socket s) {
+        Log.info(s + " refused, too many connections from there");
+        try {
+            s.getOutputStream().write(Message.encode(
+                    "ERROR :Too many connections from your address"));
+        } catch (IOException e) {
         }
-        System.out.println(handle + " " + username + " " + realname);
-        IRCHandler hella = new IRCHandler(cl.getIRCWorker(),
-                handle, username, realname, s);
-        if (cl.registerHandle(hella)) {
-            System.out.println(hella.getHandle() + " registered!");
-        } else {
-            out.println("Handle already in use, reconnect with a new handle");
+        closeQuietly(s);
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
             s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Accepts connections and deals them out to the SelectorLoops, round
+     * robin. Registration happens on the loop, so nothing here blocks but
+     * accept().
+     */
+    private static void serveSelectorLoops() throws IOException {
+        SelectorLoop[] loops = new SelectorLoop[Settings.NIO_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(cl, i);
+            loops[i].start();
+        }
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.socket().bind(new InetSocketAddress(Settings.PORT));
+        Log.info("Server started (nio, " + loops.length
+                + " loops)...waiting for clients...");
+        int next = 0;
+        while (true) {
+            awaitRoom();
+            SocketChannel s = ss.accept();
+            Metrics.accepted();
+            Log.info("Client connected => " + s.socket());
+            if (!Admission.admit(s.socket().getInetAddress())) {
+                refuse(s.socket());
+                continue;
+            }
+            try {
+                Settings.configureSocket(s.socket());
+            } catch (IOException e) {
+                // the loop will find out soon enough if the socket is broken
+                Log.warn("main> " + s.socket() + " " + e.getLocalizedMessage());
+            }
+            HostCache.prefetch(s.socket().getInetAddress());
+            loops[next].register(s);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Reads NICK and USER from a new connection and registers it. Runs on
+     * the connection's own registration thread; the Registration closes the
+     * socket if this takes too long, which ends the reading here.
+     */
+    private static void registerUser(Socket s, Registration r,
+            long acceptedAt) {
+        try {
+            Settings.configureSocket(s);
+            HostCache.prefetch(s.getInetAddress());
+            InputStream in = s.getInputStream();
+            LineDecoder reader = new LineDecoder();
+            PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+
+            // connect the new user
+            out.println("NOTICE AUTH :*** Connected, your socket info: ");
+            out.println("NOTICE AUTH :*** " + s);
+            String line;
+            do {
+                line = reader.readLine(in);
+                if (line == null) {
+                    throw new EOFException("gone before registering");
+                }
+                if (Log.TRACE) {
+                    Log.trace(s + " ==> " + line);
+                }
+            } while (!r.offer(line));
+            Log.debug(r.toString());
+            // the LineDecoder goes along, it may have read past USER already
+            IRCHandler hella = new IRCHandler(cl.getIRCWorker(),
+                    r.getHandle(), r.getUserName(), r.getRealName(),
+                    new ThreadedTransport(s, reader));
+            if (!r.complete()) {
+                return; // too late, the socket is closed
+            }
+            if (cl.registerHandle(hella)) {
+                Metrics.registered(acceptedAt);
+                Log.info(hella.getHandle() + " registered!");
+            } else {
+                Admission.left(s.getInetAddress());
+                out.println(
+                        "Handle already in use, reconnect with a new handle");
+                s.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.info(s + " dying...");
+            r.abandon();
+            closeQuietly(s);
         }
     }
 }
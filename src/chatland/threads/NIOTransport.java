@@ -0,0 +1,399 @@
+package chatland.threads;
+
+import chatland.Admission;
+import chatland.ChatLand;
+import chatland.FloodControl;
+import chatland.IRCHandler;
+import chatland.LineDecoder;
+import chatland.Log;
+import chatland.Message;
+import chatland.Metrics;
+import chatland.Registration;
+import chatland.Settings;
+import chatland.Transport;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection served by a SelectorLoop instead of its own pair of threads.
+ *
+ * Until the client has sent NICK and USER there is no IRCHandler yet, so the
+ * lines go to a Registration (this is what Main.registerUser() does for the
+ * threaded transport). After that every line goes into the IRCHandler's input
+ * queue exactly like ClientInput would do it, and the output queue is drained
+ * by the loop thread whenever the IRCWorker puts something in it.
+ *
+ * Output is written with gathering writes: whatever piled up in the output
+ * queue since the loop last looked goes to the socket in one write() of up to
+ * Settings.OUTPUT_BATCH_BYTES, however many lines that is. Only that much is
+ * taken out of the output queue at a time, so a client which does not read
+ * fills its SendQueue rather than our buffers.
+ *
+ * A line the FloodControl says has to wait stops the reading: the loop does not
+ * look at the socket again until resume(), so the client's socket fills up
+ * instead of our buffers.
+ *
+ * Everything except outputReady() and close() runs on the loop thread, and
+ * close() has the loop thread do the closing.
+ *
+ * @author ultasun
+ */
+public class NIOTransport implements Transport {
+
+    // most buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final ChatLand cl;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final ArrayDeque<ByteBuffer> pending;
+    private final ByteBuffer[] gather;
+    private final AtomicBoolean writeScheduled;
+    private final Registration registration;
+    private final long acceptedAt;
+
+    private final LineDecoder decoder;
+
+    private SelectionKey key;
+    private IRCHandler client;
+    private long pendingBytes;
+    // a line the FloodControl made wait, the socket is not read meanwhile
+    private String deferred;
+    // when the SelectorLoop is to resume() us
+    long resumeAt;
+    private volatile boolean closed;
+
+    public NIOTransport(ChatLand cl, SelectorLoop loop, SocketChannel s) {
+        this.cl = cl;
+        this.loop = loop;
+        this.channel = s;
+        readBuffer = ByteBuffer.allocate(4096);
+        pending = new ArrayDeque<>();
+        gather = new ByteBuffer[MAX_GATHER];
+        writeScheduled = new AtomicBoolean();
+        registration = new Registration(s.socket().getInetAddress(),
+                this::close);
+        acceptedAt = System.nanoTime();
+        decoder = new LineDecoder();
+        closed = false;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void greet() {
+        send("NOTICE AUTH :*** Connected, your socket info: ");
+        send("NOTICE AUTH :*** " + channel.socket());
+        write();
+    }
+
+    @Override
+    public void attach(IRCHandler h) {
+        client = h;
+    }
+
+    @Override
+    public void start() {
+        // the loop is already reading, nothing to start
+    }
+
+    @Override
+    public void outputReady() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.scheduleWrite(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        loop.scheduleClose(this);
+    }
+
+    /**
+     * Closes the channel, which cancels its key. Only on the loop thread.
+     */
+    void closeNow() {
+        // what was queued before the close (the answer to a QUIT, say) still
+        // goes out, as far as the socket takes it without waiting
+        if (key != null && key.isValid()) {
+            try {
+                writePending();
+            } catch (IOException | RuntimeException e) {
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Log.warn("Couldn't disconnect? " + channel);
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * The socket is readable: pull in what is there and hand over every
+     * complete line.
+     */
+    void read() {
+        if (deferred != null) {
+            return; // still waiting on the FloodControl
+        }
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            disconnected();
+            return;
+        }
+        if (n > 0 && client != null) {
+            client.active();
+        }
+        readBuffer.flip();
+        drain();
+    }
+
+    /**
+     * Hands over the complete lines in the read buffer, until it is empty or
+     * the FloodControl says a line has to wait. In that case the line and
+     * whatever is still in the buffer are kept, the socket is not read any
+     * more, and the SelectorLoop calls resume() when the time is up.
+     */
+    private void drain() {
+        String thisread;
+        while ((thisread = decoder.next(readBuffer)) != null) {
+            if (client != null) {
+                long wait = client.getFloodControl()
+                        .admit(FloodControl.cost(thisread));
+                if (wait < 0) {
+                    flooding();
+                    return;
+                }
+                if (wait > 0) {
+                    deferred = thisread;
+                    key.interestOps(
+                            key.interestOps() & ~SelectionKey.OP_READ);
+                    loop.resumeLater(this, wait);
+                    return;
+                }
+            }
+            received(thisread);
+            if (closed) {
+                return;
+            }
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * Called by the SelectorLoop once a deferred line may go in: hand it
+     * over, carry on with the read buffer, and read the socket again.
+     */
+    void resume() {
+        String thisread = deferred;
+        deferred = null;
+        if (closed || !key.isValid()) {
+            return;
+        }
+        received(thisread);
+        drain();
+        if (deferred == null && !closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * The client kept sending faster than the FloodControl lets it. Stop
+     * reading and have the IRCWorker QUIT it.
+     */
+    private void flooding() {
+        Log.info(client.getHandle() + " is flooding");
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        readBuffer.clear();
+        client.insertInputQueue(new Message(client, "QUIT :Excess Flood"));
+    }
+
+    private void received(String thisread) {
+        if (client != null) {
+            if (Log.TRACE) {
+                Log.trace(client.getHandle() + " ==> " + thisread);
+            }
+            client.insertInputQueue(new Message(client, thisread));
+            return;
+        }
+
+        if (Log.TRACE) {
+            Log.trace(channel.socket() + " ==> " + thisread);
+        }
+        if (!registration.offer(thisread)) {
+            return;
+        }
+        Log.debug(registration.toString());
+        try {
+            IRCHandler hella = new IRCHandler(cl.getIRCWorker(),
+                    registration.getHandle(), registration.getUserName(),
+                    registration.getRealName(), this);
+            if (!registration.complete()) {
+                client = null; // too late, the timeout is closing us
+                return;
+            }
+            if (cl.registerHandle(hella)) {
+                Metrics.registered(acceptedAt);
+                Log.info(hella.getHandle() + " registered!");
+            } else {
+                client = null;
+                Admission.left(channel.socket().getInetAddress());
+                send("Handle already in use, reconnect with a new handle");
+                write();
+                close();
+            }
+        } catch (IOException e) {
+            abandon();
+        }
+    }
+
+    /**
+     * Called on the loop thread after outputReady(): move everything in the
+     * IRCHandler's output queue into our pending buffers and write it.
+     */
+    void flushOutputQueue() {
+        writeScheduled.set(false);
+        if (client == null || closed) {
+            return;
+        }
+        write();
+    }
+
+    /**
+     * Moves Messages from the IRCHandler's output queue into our pending
+     * buffers, but only about one batch worth. The rest stays in the output
+     * queue, where the SendQueue keeps count of it.
+     */
+    private void fill() {
+        if (client == null) {
+            return;
+        }
+        Message m;
+        while (pendingBytes < Settings.OUTPUT_BATCH_BYTES
+                && (m = client.pollOutputQueue()) != null) {
+            if (Log.TRACE) {
+                Log.trace(client.getHandle() + " <== " + m);
+            }
+            ByteBuffer b = ByteBuffer.wrap(m.getFrame());
+            pending.addLast(b);
+            pendingBytes += b.remaining();
+        }
+    }
+
+    private void send(String text) {
+        ByteBuffer b = ByteBuffer.wrap(Message.encode(text));
+        pending.addLast(b);
+        pendingBytes += b.remaining();
+    }
+
+    /**
+     * Writes as much pending output as the socket will take, a batch at a time
+     * with gathering writes, and asks the Selector to tell us when it can take
+     * the rest.
+     */
+    void write() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        try {
+            if (writePending()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            disconnected();
+        }
+    }
+
+    /**
+     * Writes pending output, and more from the output queue, until it is all
+     * written or the socket is full.
+     *
+     * @return boolean true if everything was written
+     */
+    private boolean writePending() throws IOException {
+        fill();
+        while (!pending.isEmpty()) {
+            int n = 0;
+            long batched = 0;
+            for (ByteBuffer b : pending) {
+                if (n == MAX_GATHER || (n > 0
+                        && batched >= Settings.OUTPUT_BATCH_BYTES)) {
+                    break;
+                }
+                gather[n++] = b;
+                batched += b.remaining();
+            }
+            long written = channel.write(gather, 0, n);
+            pendingBytes -= written;
+            for (int i = 0; i < n && !gather[i].hasRemaining(); i++) {
+                pending.removeFirst();
+            }
+            Arrays.fill(gather, 0, n, null);
+            if (written < batched) {
+                return false; // the socket is full, wait for OP_WRITE
+            }
+            fill();
+        }
+        return true;
+    }
+
+    /**
+     * Closes a connection which never registered.
+     */
+    void abandon() {
+        registration.abandon();
+        close();
+    }
+
+    /**
+     * Something went wrong with this connection on the loop thread. Drop it,
+     * and nobody else.
+     */
+    void failed(RuntimeException e) {
+        Log.warn("selectorloop> " + channel.socket() + " " + e);
+        try {
+            disconnected();
+        } finally {
+            closed = true;
+            closeNow();
+        }
+    }
+
+    /**
+     * The client went away without a QUIT. Stop listening to the socket and
+     * let the IRCWorker clean up as if it had sent one.
+     */
+    private void disconnected() {
+        Log.info(channel.socket() + " dying...");
+        key.cancel();
+        pending.clear();
+        pendingBytes = 0;
+        if (client == null) {
+            abandon();
+        } else if (!closed) {
+            client.insertInputQueue(new Message(client,
+                    "QUIT :Connection closed"));
+        }
+    }
+}
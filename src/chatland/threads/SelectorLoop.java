@@ -0,0 +1,206 @@
+package chatland.threads;
+
+import chatland.ChatLand;
+import chatland.Log;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One event loop of the "nio" transport. Each SelectorLoop owns a Selector and
+ * a thread, and serves any number of NIOTransport connections, reading and
+ * writing whichever sockets are ready.
+ *
+ * Other threads never touch the Selector's keys directly. Main hands over newly
+ * accepted SocketChannels with register(), the IRCWorker asks for output to be
+ * flushed with scheduleWrite(), and connections are closed with
+ * scheduleClose(). They just queue the request and wake the Selector up, and
+ * the loop thread does the real work on its next pass. Closing a channel
+ * cancels its key, so if that happened on another thread, the loop could find
+ * the key cancelled in the middle of changing it.
+ *
+ * Should one connection throw anyway, only that connection is dropped, and
+ * the loop carries on with the others.
+ *
+ * @author ultasun
+ */
+public class SelectorLoop implements Runnable {
+
+    private final ChatLand cl;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<SocketChannel> accepted;
+    private final ConcurrentLinkedQueue<NIOTransport> writable;
+    private final ConcurrentLinkedQueue<NIOTransport> closing;
+    // connections waiting on their FloodControl
+    private final ArrayList<NIOTransport> waiting;
+
+    public SelectorLoop(ChatLand cl, int number) throws IOException {
+        this.cl = cl;
+        selector = Selector.open();
+        accepted = new ConcurrentLinkedQueue<>();
+        writable = new ConcurrentLinkedQueue<>();
+        closing = new ConcurrentLinkedQueue<>();
+        waiting = new ArrayList<>();
+        thread = new Thread(this, "SelectorLoop-" + number);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a freshly accepted connection over to this loop.
+     *
+     * @param s the accepted connection, still in blocking mode
+     */
+    public void register(SocketChannel s) {
+        accepted.add(s);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop thread to drain a connection's output queue.
+     *
+     * @param t the connection with new output
+     */
+    void scheduleWrite(NIOTransport t) {
+        writable.add(t);
+        selector.wakeup();
+    }
+
+    /**
+     * Closes a connection on the loop thread: at once if that is where we
+     * are, otherwise on the loop's next pass.
+     *
+     * @param t the connection to close
+     */
+    void scheduleClose(NIOTransport t) {
+        if (Thread.currentThread() == thread) {
+            t.closeNow();
+            return;
+        }
+        closing.add(t);
+        selector.wakeup();
+    }
+
+    /**
+     * Has a connection which stopped reading for its FloodControl call
+     * resume() after a while. Only called on the loop thread.
+     *
+     * @param t the connection
+     * @param nanos how long it has to wait
+     */
+    void resumeLater(NIOTransport t, long nanos) {
+        t.resumeAt = System.nanoTime() + nanos;
+        waiting.add(t);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                selector.select(resumeWaiting());
+                registerAccepted();
+                closeScheduled();
+                flushScheduled();
+
+                Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NIOTransport t = (NIOTransport) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            t.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            t.write();
+                        }
+                    } catch (RuntimeException e) {
+                        // a CancelledKeyException, say
+                        t.failed(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("selectorloop> " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Resumes the waiting connections whose time is up.
+     *
+     * @return long how many milliseconds until the next one is, 0 if none
+     */
+    private long resumeWaiting() {
+        if (waiting.isEmpty()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        // resume() may make a connection wait again, which adds it to the end
+        for (int i = 0, n = waiting.size(); i < n; i++) {
+            NIOTransport t = waiting.get(i);
+            if (t.resumeAt - now <= 0) {
+                waiting.set(i, null);
+                try {
+                    t.resume();
+                } catch (RuntimeException e) {
+                    t.failed(e);
+                }
+            }
+        }
+        long next = Long.MAX_VALUE;
+        int kept = 0;
+        for (NIOTransport t : waiting) {
+            if (t != null) {
+                waiting.set(kept++, t);
+                next = Math.min(next, t.resumeAt - now);
+            }
+        }
+        waiting.subList(kept, waiting.size()).clear();
+        if (kept == 0) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next + 999_999));
+    }
+
+    private void registerAccepted() {
+        SocketChannel s;
+        while ((s = accepted.poll()) != null) {
+            NIOTransport t = new NIOTransport(cl, this, s);
+            try {
+                s.configureBlocking(false);
+                t.setKey(s.register(selector, SelectionKey.OP_READ, t));
+                t.greet();
+            } catch (IOException e) {
+                Log.warn("selectorloop> " + s + " " + e.getLocalizedMessage());
+                t.abandon();
+            }
+        }
+    }
+
+    private void closeScheduled() {
+        NIOTransport t;
+        while ((t = closing.poll()) != null) {
+            t.closeNow();
+        }
+    }
+
+    private void flushScheduled() {
+        NIOTransport t;
+        while ((t = writable.poll()) != null) {
+            try {
+                t.flushOutputQueue();
+            } catch (RuntimeException e) {
+                t.failed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package chatland.threads;
+
+import chatland.IRCHandler;
+import chatland.LineDecoder;
+import chatland.Log;
+import chatland.Transport;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * The original transport: one ClientInput thread blocked reading the socket,
+ * and one ClientOutput thread blocked on the IRCHandler's output queue. The
+ * threads come from Threads.newThread(), so they are virtual threads when the
+ * "virtual" transport was picked.
+ *
+ * @author ultasun
+ */
+public class ThreadedTransport implements Transport {
+
+    private final Socket client;
+    private final LineDecoder reader;
+    private Thread input, output;
+
+    public ThreadedTransport(Socket s) {
+        this(s, null);
+    }
+
+    /**
+     * @param s the client's socket
+     * @param reader the LineDecoder which read the registration, so whatever
+     * it has read past USER is not lost; null for a new one
+     */
+    public ThreadedTransport(Socket s, LineDecoder reader) {
+        this.client = s;
+        this.reader = reader;
+    }
+
+    @Override
+    public void attach(IRCHandler h) throws IOException {
+        input = Threads.newThread(new ClientInput(h, reader),
+                "ClientInput-" + client.getPort());
+        output = Threads.newThread(new ClientOutput(h),
+                "ClientOutput-" + client.getPort());
+    }
+
+    @Override
+    public void start() {
+        input.start();
+        output.start();
+    }
+
+    @Override
+    public void outputReady() {
+        // ClientOutput is already waiting on the output queue
+    }
+
+    @Override
+    public void close() {
+        try {
+            input.interrupt();
+            output.interrupt();
+            client.close();
+        } catch (IOException ex) {
+            Log.warn("Couldn't disconnect? " + client);
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return client;
+    }
+}
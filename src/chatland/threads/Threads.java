@@ -0,0 +1,69 @@
+package chatland.threads;
+
+import chatland.Log;
+import chatland.Settings;
+import java.lang.reflect.Method;
+
+/**
+ * Makes the threads for ClientInput, ClientOutput and user registration.
+ *
+ * With -Dchatland.transport=virtual these are virtual threads, so an idle
+ * connection costs a small heap object instead of a platform thread and its
+ * stack. Virtual threads arrived in Java 21 while the project still builds
+ * for Java 8, so Thread.ofVirtual() is looked up by reflection. On an older
+ * runtime we say so once and hand out platform threads.
+ *
+ * @author ultasun
+ */
+public final class Threads {
+
+    private static final Method OF_VIRTUAL, NAME, UNSTARTED;
+
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        if (Settings.useVirtualThreads()) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("threads> virtual threads need Java 21, "
+                        + "using platform threads");
+                ofVirtual = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private Threads() {
+    }
+
+    /**
+     * @return boolean true if newThread() hands out virtual threads
+     */
+    public static boolean virtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Makes an unstarted thread for r, virtual if the transport asks for it.
+     *
+     * @param r what the thread runs
+     * @param name the thread's name
+     * @return Thread a thread that has not been started yet
+     */
+    public static Thread newThread(Runnable r, String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, r);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return new Thread(r, name);
+    }
+}
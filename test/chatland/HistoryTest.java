@@ -0,0 +1,89 @@
+package chatland;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * The History ring, once it has wrapped around, and asked for lines it does
+ * not have.
+ *
+ * @author ultasun
+ */
+public class HistoryTest {
+
+    /**
+     * Enough non-ASCII lines to go around the ring a few times, so the bytes
+     * past its tail are what is left of old lines.
+     */
+    private static History wrapped() {
+        History h = new History();
+        long written = 0;
+        for (int i = 0; written < 3L * Settings.HISTORY_BYTES; i++) {
+            byte[] frame = line(i);
+            h.add(1000 + i, frame);
+            written += frame.length;
+        }
+        return h;
+    }
+
+    private static byte[] line(long i) {
+        return (":x!~x@host PRIVMSG #b :gr\u00fc\u00dfe \u263a " + i + "\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> read(History h, long from, long to) {
+        final List<Long> ids = new ArrayList<>();
+        int n = h.read(from, to, (msgid, millis, frame) -> {
+            assertEquals(1000 + msgid, millis);
+            assertEquals(new String(line(msgid), StandardCharsets.UTF_8),
+                    new String(frame, StandardCharsets.UTF_8));
+            ids.add(msgid);
+        });
+        assertEquals(ids.size(), n);
+        return ids;
+    }
+
+    @Test
+    public void readsAWrappedRing() {
+        History h = wrapped();
+        assertTrue(h.first() > 0);
+        List<Long> ids = read(h, h.first(), h.end());
+        assertEquals(h.end() - h.first(), ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(h.first() + i, (long) ids.get(i));
+        }
+    }
+
+    @Test
+    public void clampsToTheLinesKept() {
+        History h = wrapped();
+        List<Long> ids = read(h, 0, h.first() + 3);
+        assertEquals(3, ids.size());
+        assertEquals(h.first(), (long) ids.get(0));
+        ids = read(h, h.end() - 2, Long.MAX_VALUE);
+        assertEquals(2, ids.size());
+        assertEquals(h.end() - 1, (long) ids.get(1));
+    }
+
+    @Test
+    public void readsNothingOutOfRange() {
+        History h = wrapped();
+        assertEquals(0, read(h, h.end(), h.end() + 10).size());
+        assertEquals(0, read(h, 1000000, 1000010).size());
+        assertEquals(0, read(h, Long.MAX_VALUE - 1, Long.MAX_VALUE).size());
+        assertEquals(0, read(h, Long.MIN_VALUE, h.first()).size());
+        assertEquals(0, read(h, h.end() - 1, h.first()).size());
+    }
+
+    @Test
+    public void readsNothingWhenEmpty() {
+        History h = new History();
+        assertEquals(0, read(h, 0, 10).size());
+        assertEquals(0, read(h, 5, Long.MAX_VALUE).size());
+        assertEquals(h.end(), h.seek(0));
+    }
+}